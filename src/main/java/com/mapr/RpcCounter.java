@@ -17,5 +17,291 @@
 
 package com.mapr;
 
-public class RpcCounter {
+import backtype.storm.drpc.DRPCSpout;
+import backtype.storm.drpc.ReturnResults;
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.generated.Grouping;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.BasicOutputCollector;
+import backtype.storm.topology.IBasicBolt;
+import backtype.storm.topology.IRichBolt;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import com.google.common.collect.Lists;
+import com.mapr.storm.CounterBolt;
+import com.mapr.storm.Rollup;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Answers DRPC queries about live counts from memory.
+ * <p/>
+ * This bolt subscribes to the output of a {@link CounterBolt} and keeps the counts it sees by
+ * minute and by hour in a {@link Rollup}.  Queries arrive on a second input through a DRPC spout
+ * and are answered from that copy, so a query never touches the counter and can't slow down
+ * counting.  Both inputs are grouped on key so the task that holds a key is the one that gets
+ * asked about it.  {@link #addTo} wires all of this up.
+ * <p/>
+ * Queries are strings of words:
+ * <pre>
+ * count key value [span]   the count for one pair
+ * top key n [span]         the n values with the biggest counts for a key, one per line
+ * </pre>
+ * The span is how far back to look, such as 90s, 15m, 1h or 2d, and defaults to 1h.  It is rounded
+ * up to whole slots of the finest level that reaches back that far and the slot in progress is
+ * always included.  Counts are credited to the minute in which they reach this bolt, which is at
+ * most one reporting interval after the events were counted.  Results are plain text with tabs
+ * between fields in the same way as {@link com.mapr.storm.FileBolt}.  Bad queries get a result
+ * starting with "error:".
+ * <p/>
+ * The counter has to emit counts or deltas for (key, value) pairs.  Its tuples are added to the
+ * rollup using their "delta" field if they have one and their "count" field otherwise.  Sketches
+ * and distinct counts can't be added up by value, so prepare rejects a counter that emits them.
+ */
+public class RpcCounter implements IRichBolt {
+  private static final Rollup.Listener IGNORE = new Rollup.Listener() {
+    @Override
+    public void closed(String key, String value, Rollup.Level level, long start, long count) {
+      // closed slots stay in the rings until they are queried
+    }
+  };
+
+  private final Rollup.Level[] levels;
+
+  private transient Rollup counts;
+  private transient OutputCollector outputCollector;
+
+  public RpcCounter() {
+    this(new Rollup.Level("minute", 60 * 1000, 60), new Rollup.Level("hour", 60 * 60 * 1000, 24));
+  }
+
+  public RpcCounter(Rollup.Level... levels) {
+    // check the levels now rather than when the topology starts
+    new Rollup(levels);
+    this.levels = levels;
+  }
+
+  /**
+   * Adds this bolt to a topology along with the DRPC spout, a bolt that finds the key in each
+   * query and the bolt that returns the results.  The extra components have the id of this bolt
+   * followed by "-spout", "-parse" and "-return".
+   *
+   * @param builder  The topology being built.
+   * @param id       The component id for this bolt.
+   * @param counter  The counter whose output should be queried.
+   * @param function The name of the DRPC function that clients call.
+   * @param tasks    How many tasks to split the counts over.
+   */
+  public void addTo(TopologyBuilder builder, String id, String counter, String function, int tasks) {
+    builder.setSpout(id + "-spout", new DRPCSpout(function));
+    builder.setBolt(id + "-parse", new QueryParser())
+        .shuffleGrouping(id + "-spout");
+    builder.setBolt(id, this, tasks)
+        .fieldsGrouping(counter, new Fields("key"))
+        .fieldsGrouping(id + "-parse", new Fields("key"));
+    builder.setBolt(id + "-return", new ReturnResults())
+        .shuffleGrouping(id);
+  }
+
+  @Override
+  public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
+    if (topologyContext != null) {
+      checkSources(topologyContext);
+    }
+    this.outputCollector = outputCollector;
+    counts = new Rollup(levels);
+  }
+
+  /**
+   * Makes sure that every input other than the queries carries counts or deltas for pairs.
+   */
+  private void checkSources(TopologyContext topologyContext) {
+    Map<GlobalStreamId, Grouping> sources = topologyContext.getThisSources();
+    if (sources == null) {
+      return;
+    }
+    for (GlobalStreamId stream : sources.keySet()) {
+      Fields fields = topologyContext.getComponentOutputFields(stream.get_componentId(), stream.get_streamId());
+      if (fields == null || fields.contains("return-info")) {
+        continue;
+      }
+      if (!fields.contains("key") || !fields.contains("value") || !(fields.contains("count") || fields.contains("delta"))) {
+        throw new IllegalStateException(String.format("Can only answer queries about pair counts or deltas but %s emits %s",
+            stream.get_componentId(), fields));
+      }
+    }
+  }
+
+  @Override
+  public void execute(Tuple tuple) {
+    counts.advance(now(), IGNORE);
+    if (tuple.contains("return-info")) {
+      String result = answer(tuple.getStringByField("query"));
+      outputCollector.emit(tuple, new Values(result, tuple.getValueByField("return-info")));
+    } else {
+      long n;
+      if (tuple.contains("delta")) {
+        n = ((Number) tuple.getValueByField("delta")).longValue();
+      } else if (tuple.contains("count")) {
+        n = ((Number) tuple.getValueByField("count")).longValue();
+      } else {
+        n = 1;
+      }
+      counts.add(tuple.getStringByField("key"), tuple.getStringByField("value"), n);
+    }
+    outputCollector.ack(tuple);
+  }
+
+  /**
+   * Answers a single query.
+   */
+  String answer(String query) {
+    String[] words = query.trim().split("\\s+");
+    try {
+      if (words.length == 3 || words.length == 4) {
+        int[] span = span(words.length == 4 ? words[3] : "1h");
+        if (words[0].equals("count")) {
+          return Long.toString(counts.sum(words[1], words[2], span[0], span[1]));
+        } else if (words[0].equals("top")) {
+          return top(words[1], Integer.parseInt(words[2]), span[0], span[1]);
+        }
+      }
+      return "error: expected \"count key value [span]\" or \"top key n [span]\" but got \"" + query + "\"";
+    } catch (IllegalArgumentException e) {
+      return "error: " + e.getMessage();
+    }
+  }
+
+  private String top(String key, int n, int level, int slots) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Can't ask for the top " + n);
+    }
+    // a min-heap of the n biggest counts seen so far
+    PriorityQueue<Entry> best = new PriorityQueue<Entry>(n + 1, BY_COUNT);
+    for (String value : counts.values(key)) {
+      long count = counts.sum(key, value, level, slots);
+      if (count > 0) {
+        best.add(new Entry(value, count));
+        if (best.size() > n) {
+          best.poll();
+        }
+      }
+    }
+
+    List<Entry> r = Lists.newArrayList(best);
+    Collections.sort(r, Collections.reverseOrder(BY_COUNT));
+    StringBuilder result = new StringBuilder();
+    for (Entry entry : r) {
+      result.append(entry.value).append('\t').append(entry.count).append('\n');
+    }
+    return result.toString();
+  }
+
+  /**
+   * Finds the finest level and number of slots that cover a span such as 15m.
+   *
+   * @return The level and the number of slots.
+   */
+  private int[] span(String span) {
+    long unit;
+    switch (span.charAt(span.length() - 1)) {
+      case 's':
+        unit = 1000;
+        break;
+      case 'm':
+        unit = 60 * 1000;
+        break;
+      case 'h':
+        unit = 60 * 60 * 1000;
+        break;
+      case 'd':
+        unit = 24 * 60 * 60 * 1000;
+        break;
+      default:
+        throw new IllegalArgumentException("Span must end with s, m, h or d: " + span);
+    }
+    long ms = Long.parseLong(span.substring(0, span.length() - 1)) * unit;
+    if (ms < 1) {
+      throw new IllegalArgumentException("Span must be positive: " + span);
+    }
+    for (int i = 0; i < levels.length; i++) {
+      long slots = (ms + levels[i].getDuration() - 1) / levels[i].getDuration();
+      if (slots <= levels[i].getSlots() + 1) {
+        return new int[]{i, (int) slots};
+      }
+    }
+    throw new IllegalArgumentException("Counts aren't kept for as long as " + span);
+  }
+
+  private long now() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public void cleanup() {
+    // nothing to clean up
+  }
+
+  @Override
+  public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    declarer.declare(new Fields("result", "return-info"));
+  }
+
+  private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      if (a.count != b.count) {
+        return a.count < b.count ? -1 : 1;
+      }
+      // ties go to the earlier value so that results don't depend on hash order
+      return b.value.compareTo(a.value);
+    }
+  };
+
+  private static class Entry {
+    private final String value;
+    private final long count;
+
+    private Entry(String value, long count) {
+      this.value = value;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Pulls the key out of each DRPC query so that the query can be grouped with the counts for
+   * that key.  The key is the second word of the query.
+   */
+  public static class QueryParser implements IBasicBolt {
+    @Override
+    public void prepare(Map conf, TopologyContext context) {
+      // nothing to set up
+    }
+
+    @Override
+    public void execute(Tuple input, BasicOutputCollector collector) {
+      String query = input.getString(0);
+      String[] words = query.trim().split("\\s+");
+      String key = words.length > 1 ? words[1] : "";
+      collector.emit(new Values(key, query, input.getValue(1)));
+    }
+
+    @Override
+    public void cleanup() {
+      // nothing to clean up
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+      declarer.declare(new Fields("key", "query", "return-info"));
+    }
+  }
 }
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import java.io.Serializable;
+
+/**
+ * Where a bolt gets the time that decides when its windows close.  Bolts use {@link #SYSTEM}
+ * unless a test substitutes a clock that it can move forward by hand.
+ */
+interface Clock extends Serializable {
+  Clock SYSTEM = new SystemClock();
+
+  /**
+   * @return The current time in ms.  Only differences between readings are meaningful.
+   */
+  long now();
+
+  class SystemClock implements Clock {
+    @Override
+    public long now() {
+      return System.nanoTime() / 1000000;
+    }
+  }
+}
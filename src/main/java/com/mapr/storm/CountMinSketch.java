@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Approximate counts for an unlimited number of distinct strings in a fixed amount of memory.
+ * This is the Count-Min sketch of Cormode and Muthukrishnan.  Each string increments one counter
+ * in each of depth rows and the estimate for a string is the smallest of its counters.
+ * <p/>
+ * Estimates are never too small.  With width = e / epsilon and depth = ln(1 / delta), an estimate
+ * is more than epsilon times the total count too large with probability at most delta.
+ * <p/>
+ * Sketches with the same shape can be merged by adding their counters, so sketches built for
+ * different windows or by different tasks can be combined downstream.  The row hashes are fixed
+ * functions of the string so that sketches built in different processes agree.
+ */
+public class CountMinSketch implements Serializable {
+  private final int depth;
+  private final int width;
+  private final long[] counters;
+  private long total = 0;
+
+  public CountMinSketch(int depth, int width) {
+    if (depth < 1 || width < 1) {
+      throw new IllegalArgumentException("Sketch must have at least one row and one column");
+    }
+    this.depth = depth;
+    this.width = width;
+    this.counters = new long[depth * width];
+  }
+
+  /**
+   * Builds a sketch whose estimates are within epsilon times the total count with probability
+   * 1 - delta.
+   */
+  public static CountMinSketch forError(double epsilon, double delta) {
+    if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1) {
+      throw new IllegalArgumentException("Epsilon and delta must be between 0 and 1");
+    }
+    return new CountMinSketch((int) Math.ceil(Math.log(1 / delta)), (int) Math.ceil(Math.E / epsilon));
+  }
+
+  public void add(String item) {
+    add(item, 1);
+  }
+
+  public void add(String item, long n) {
+    long h = hash(item);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+    for (int i = 0; i < depth; i++) {
+      counters[i * width + column(h1, h2, i)] += n;
+    }
+    total += n;
+  }
+
+  /**
+   * Returns an estimate of the count for item that is never smaller than the true count.
+   */
+  public long estimate(String item) {
+    long h = hash(item);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+    long r = Long.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      r = Math.min(r, counters[i * width + column(h1, h2, i)]);
+    }
+    return r;
+  }
+
+  /**
+   * Adds all of the counts in other into this sketch.
+   */
+  public void merge(CountMinSketch other) {
+    if (other.depth != depth || other.width != width) {
+      throw new IllegalArgumentException(String.format("Can't merge %dx%d sketch into %dx%d sketch", other.depth, other.width, depth, width));
+    }
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] += other.counters[i];
+    }
+    total += other.total;
+  }
+
+  public long total() {
+    return total;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Serializes this sketch as depth, width and total followed by the counters.
+   */
+  public byte[] toBytes() {
+    ByteBuffer buf = ByteBuffer.allocate(16 + 8 * counters.length);
+    buf.putInt(depth);
+    buf.putInt(width);
+    buf.putLong(total);
+    buf.asLongBuffer().put(counters);
+    return buf.array();
+  }
+
+  public static CountMinSketch fromBytes(byte[] bytes) {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    CountMinSketch r = new CountMinSketch(buf.getInt(), buf.getInt());
+    r.total = buf.getLong();
+    buf.asLongBuffer().get(r.counters);
+    return r;
+  }
+
+  /**
+   * Double hashing gives depth nearly independent columns from one 64 bit hash.
+   */
+  private int column(int h1, int h2, int row) {
+    return ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+  }
+
+  /**
+   * A 64 bit hash of the characters of s.  String.hashCode only has 32 bits which would make
+   * many of the strings in a big stream collide in every row at once.
+   */
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+}
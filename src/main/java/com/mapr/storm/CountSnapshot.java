@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable view of running totals for (key, value) pairs.  Since nothing in a snapshot ever
+ * changes, any number of threads can read one without locking while the counter goes on counting.
+ * <p/>
+ * A new snapshot is made from the previous one by adding the counts for a window.  The keys are
+ * held in a hash trie with 32 way branching.  Changing a key copies only the nodes on the path
+ * to it, a handful of small arrays, and everything else is shared with the previous snapshot.  So
+ * a new snapshot costs O(log n) per key the window touched rather than anything proportional to
+ * the number of keys ever seen.  The values of a key are kept in one map which is copied when
+ * the window touches the key, so a key with a very large number of values costs that many
+ * entries each time it changes.
+ */
+public final class CountSnapshot {
+  public static final CountSnapshot EMPTY = new CountSnapshot(null, 0, 0, 0);
+
+  private final Node root;
+  private final long total;
+  private final int keys;
+  private final long time;
+
+  private CountSnapshot(Node root, long total, int keys, long time) {
+    this.root = root;
+    this.total = total;
+    this.keys = keys;
+    this.time = time;
+  }
+
+  /**
+   * Returns a new snapshot with counts added.  This snapshot is unchanged.
+   *
+   * @param counts The counts to add.  Pairs whose totals come to zero are left out.
+   * @param time   When the counts were taken, in ms.
+   */
+  public CountSnapshot plus(PairCountTable<String, String> counts, long time) {
+    // inner maps that have already been copied for this window, so each key is copied once
+    Map<String, Map<String, Long>> changed = Maps.newHashMap();
+    int newKeys = keys;
+
+    PairCountTable.Cursor<String, String> entries = counts.cursor();
+    while (entries.next()) {
+      String key = entries.first();
+      Map<String, Long> byValue = changed.get(key);
+      if (byValue == null) {
+        Map<String, Long> old = find(root, hash(key), 0, key);
+        if (old == null) {
+          byValue = Maps.newHashMap();
+          newKeys++;
+        } else {
+          byValue = Maps.newHashMap(old);
+        }
+        changed.put(key, byValue);
+      }
+
+      Long old = byValue.get(entries.second());
+      long n = (old == null ? 0 : old) + entries.count();
+      if (n == 0) {
+        byValue.remove(entries.second());
+      } else {
+        byValue.put(entries.second(), n);
+      }
+    }
+
+    // nodes made for this snapshot are marked with edit so that later changes in the same window
+    // can update them in place instead of copying them again
+    Object edit = new Object();
+    Node newRoot = root;
+    for (Map.Entry<String, Map<String, Long>> entry : changed.entrySet()) {
+      String key = entry.getKey();
+      if (entry.getValue().isEmpty()) {
+        newRoot = remove(newRoot, edit, hash(key), 0, key);
+        newKeys--;
+      } else {
+        newRoot = put(newRoot, edit, hash(key), 0, key, Collections.unmodifiableMap(entry.getValue()));
+      }
+    }
+    return new CountSnapshot(newRoot, total + counts.total(), newKeys, time);
+  }
+
+  public long get(String key, String value) {
+    Long r = values(key).get(value);
+    return r == null ? 0 : r;
+  }
+
+  /**
+   * The totals for all of the values of a key.  The map can't be changed.
+   */
+  public Map<String, Long> values(String key) {
+    Map<String, Long> r = find(root, hash(key), 0, key);
+    if (r == null) {
+      return Collections.emptyMap();
+    }
+    return r;
+  }
+
+  /**
+   * The sum of all counts that have gone into this snapshot.
+   */
+  public long total() {
+    return total;
+  }
+
+  /**
+   * The number of distinct keys.
+   */
+  public int keys() {
+    return keys;
+  }
+
+  /**
+   * When the most recent counts in this snapshot were taken, in ms.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  private static int hash(String key) {
+    return Hashing.mix(key.hashCode());
+  }
+
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & 31);
+  }
+
+  private static Map<String, Long> find(Node node, int hash, int shift, String key) {
+    while (node != null) {
+      int bit = bit(hash, shift);
+      if ((node.bitmap & bit) == 0) {
+        return null;
+      }
+      Object child = node.children[node.index(bit)];
+      if (child instanceof Leaf) {
+        for (Leaf leaf = (Leaf) child; leaf != null; leaf = leaf.next) {
+          if (leaf.hash == hash && leaf.key.equals(key)) {
+            return leaf.values;
+          }
+        }
+        return null;
+      }
+      node = (Node) child;
+      shift += 5;
+    }
+    return null;
+  }
+
+  private static Node put(Node node, Object edit, int hash, int shift, String key, Map<String, Long> values) {
+    if (node == null) {
+      node = new Node(edit, 0, new Object[0]);
+    }
+    int bit = bit(hash, shift);
+    int i = node.index(bit);
+    if ((node.bitmap & bit) == 0) {
+      Object[] children = new Object[node.children.length + 1];
+      System.arraycopy(node.children, 0, children, 0, i);
+      children[i] = new Leaf(hash, key, values, null);
+      System.arraycopy(node.children, i, children, i + 1, node.children.length - i);
+      return node.withChildren(edit, node.bitmap | bit, children);
+    }
+
+    Object child = node.children[i];
+    if (child instanceof Node) {
+      return node.withChild(edit, i, put((Node) child, edit, hash, shift + 5, key, values));
+    }
+    Leaf leaf = (Leaf) child;
+    if (leaf.hash == hash) {
+      // full hash collision, or the same key
+      return node.withChild(edit, i, new Leaf(hash, key, values, Leaf.without(leaf, key)));
+    }
+    // two different hashes in one slot are split out one level down
+    Node split = new Node(edit, bit(leaf.hash, shift + 5), new Object[]{leaf});
+    return node.withChild(edit, i, put(split, edit, hash, shift + 5, key, values));
+  }
+
+  private static Node remove(Node node, Object edit, int hash, int shift, String key) {
+    if (node == null) {
+      return null;
+    }
+    int bit = bit(hash, shift);
+    if ((node.bitmap & bit) == 0) {
+      return node;
+    }
+    int i = node.index(bit);
+    Object child = node.children[i];
+    Object replacement;
+    if (child instanceof Node) {
+      replacement = remove((Node) child, edit, hash, shift + 5, key);
+    } else {
+      replacement = Leaf.without((Leaf) child, key);
+    }
+    if (replacement == child) {
+      return node;
+    } else if (replacement != null) {
+      return node.withChild(edit, i, replacement);
+    } else if (node.bitmap == bit) {
+      return null;
+    } else {
+      Object[] children = new Object[node.children.length - 1];
+      System.arraycopy(node.children, 0, children, 0, i);
+      System.arraycopy(node.children, i + 1, children, i, children.length - i);
+      return node.withChildren(edit, node.bitmap & ~bit, children);
+    }
+  }
+
+  /**
+   * An inner node of the trie.  Only the children whose bits are set in the bitmap are stored.
+   * A node is never changed once a snapshot that can reach it has been returned.
+   */
+  private static final class Node {
+    private final Object edit;
+    private int bitmap;
+    private Object[] children;
+
+    private Node(Object edit, int bitmap, Object[] children) {
+      this.edit = edit;
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private Node withChildren(Object edit, int bitmap, Object[] children) {
+      if (this.edit == edit) {
+        this.bitmap = bitmap;
+        this.children = children;
+        return this;
+      }
+      return new Node(edit, bitmap, children);
+    }
+
+    private Node withChild(Object edit, int i, Object child) {
+      if (this.edit == edit) {
+        children[i] = child;
+        return this;
+      }
+      Object[] copy = children.clone();
+      copy[i] = child;
+      return new Node(edit, bitmap, copy);
+    }
+  }
+
+  /**
+   * A key and its values.  Keys with the same full hash are chained.
+   */
+  private static final class Leaf {
+    private final int hash;
+    private final String key;
+    private final Map<String, Long> values;
+    private final Leaf next;
+
+    private Leaf(int hash, String key, Map<String, Long> values, Leaf next) {
+      this.hash = hash;
+      this.key = key;
+      this.values = values;
+      this.next = next;
+    }
+
+    /**
+     * The chain without key, sharing whatever follows it.  Returns the same chain if key isn't
+     * there.
+     */
+    private static Leaf without(Leaf leaf, String key) {
+      if (leaf == null) {
+        return null;
+      }
+      if (leaf.key.equals(key)) {
+        return leaf.next;
+      }
+      Leaf rest = without(leaf.next, key);
+      return rest == leaf.next ? leaf : new Leaf(leaf.hash, leaf.key, leaf.values, rest);
+    }
+  }
+}
@@ -17,6 +17,8 @@
 
 package com.mapr.storm;
 
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.generated.Grouping;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
@@ -24,19 +26,35 @@ import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * This Storm bolt counts things that it receives.  As items are received, they are also logged into
- * a recovery log.
+ * This Storm bolt counts things that it receives.  If a recovery log has been configured with
+ * {@link #withRecoveryLog(String)}, items are also logged into a recovery log as they are received
+ * and are acknowledged as soon as they have been logged.  With {@link #withGroupCommit(long, int)},
+ * acknowledgement waits until the log has been forced to disk, but the log is forced once for a
+ * whole group of items rather than once per item.
  * <p/>
  * At fixed intervals, all counts are emitted and reset back to zero.  This also causes the snapshot
  * to be set to the current position in the log.  The snapshot contains nothing more than a
@@ -44,16 +62,72 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p/>
  * On startup, if we see one or more recovery logs and a snapshot, we look at the snapshot and read
  * items from the log starting where the snapshot indicates before accepting new items. If we see
- * logs but no snapshot, we don't need to read any logs before starting.
+ * logs but no snapshot, we crashed before the first snapshot so we read all of the logs.
  * <p/>
  * All log files are named in a manner that allows them to be read in order.  Snapshots contain a
  * reference to a file and an offset so that we know where to start reading the log files.  A
  * snapshot may refer to a log that is not the latest.  If so, we need to read all logs up to the
  * latest in addition to the log specified in the snapshot.
+ * <p/>
+ * Normally, incoming tuples are buffered until the end of the window and only counted when the
+ * window is recorded.  In count-on-arrival mode, counts are updated as each tuple arrives and the
+ * tuples are retained only so that they can be anchored and acknowledged when the window is
+ * recorded.  This avoids a second pass over the buffered tuples at the end of each window.  A
+ * recovery log implies count-on-arrival since the tuples have already been acknowledged.
+ * <p/>
+ * By default, windows are tumbling windows one reporting interval long.  With
+ * {@link #withSlidingWindow(int, int)}, each reporting interval becomes one slice of a longer window
+ * and the counts for the whole window are emitted every few slices.
+ * <p/>
+ * Windows are normally based on the time at which tuples arrive.  With
+ * {@link #withEventTime(String, long)}, windows are instead based on a time stamp carried by each
+ * tuple and are closed according to a watermark that follows the progress of each source.  That
+ * makes the counts independent of when tuples happen to be processed, which matters when a
+ * backlog is being caught up or when tuples are replayed.
+ * <p/>
+ * With {@link #withTopK(int, double)}, each window keeps a fixed number of counters instead of
+ * one counter per distinct pair and only the most frequent pairs are emitted.  With
+ * {@link #withSketch(double, double)}, each window keeps a Count-Min sketch of the values for
+ * each key and emits the sketches.  With {@link #withDistinctCounts(int)}, each window counts the
+ * distinct values for each key with a HyperLogLog sketch.
+ * <p/>
+ * With {@link #withPartialCounts()}, each input tuple carries a count in a third field so that
+ * this bolt can merge the output of other counters.  See {@link TwoPhaseCounter}.
+ * <p/>
+ * Each output tuple is normally anchored only to the input tuples for the same pair (or the same
+ * key for sketches) so that every input is an anchor exactly once and the work done by the ackers
+ * grows with the number of inputs.  {@link #withAnchoring(Anchoring)} selects other schemes.
+ * <p/>
+ * Windows are normally closed by execute when a tuple arrives after the end of the window.  With
+ * {@link #withBackgroundFlush(long)}, a background thread also closes windows so that a window is
+ * emitted on time even if the stream goes quiet.  The thread takes over a window without execute
+ * having to take a lock for each tuple.
+ * <p/>
+ * Besides the limit on buffered tuples, {@link #withMemoryLimit(long)} limits the estimated
+ * number of bytes held for the current window.  A window that reaches either limit is emitted
+ * early.  Execute does the early flush itself, so input slows down to the rate at which windows
+ * can be emitted rather than piling up.
+ * <p/>
+ * With {@link #withDeltas(long, long)}, only pairs whose counts have changed are emitted and small
+ * changes are held back until they add up or get old.
+ * <p/>
+ * With {@link #withSpill(String, long)}, a window with too many distinct pairs to count in memory
+ * spills sorted runs to disk which are merged when the window is emitted.
+ * <p/>
+ * With {@link #withSnapshots()}, running totals are published as an immutable snapshot after each
+ * window so that other threads can read them without getting in the way of counting.
  */
 public class CounterBolt implements IRichBolt {
   private static final transient Logger logger = Logger.getLogger(CounterBolt.class);
-  
+
+  private static final long LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  // rough sizes used to estimate memory use.  A retained tuple costs the tuple, its value list and
+  // message id.  A pair costs its share of the slot arrays in the count table
+  private static final int TUPLE_BYTES = 200;
+  private static final int PAIR_BYTES = 64;
+  private static final int STRING_BYTES = 40;
+
   private final AtomicInteger count = new AtomicInteger();
 
 
@@ -62,27 +136,555 @@ public class CounterBolt implements IRichBolt {
   private final long reportingInterval;
   private final int maxBufferedTuples;
 
+  // if set, we also flush when the state for the current window is estimated to be this big
+  private long maxBufferedBytes = 0;
+
+  // if set, we count tuples as they arrive rather than buffering them until the window closes
+  private final boolean countOnArrival;
+
   // all pending tuples are kept with an atomic reference so we can atomically switch to a
   // clean table
   private final AtomicReference<Queue<Tuple>> tupleLog = new AtomicReference<Queue<Tuple>>(new LinkedBlockingQueue<Tuple>());
 
+  // in count-on-arrival mode, the counts for the current window are switched in the same way
+  private final AtomicReference<Window> window = new AtomicReference<Window>(new Window());
+
   private OutputCollector outputCollector;
 
+  // recovery logs for each task go in a directory whose name starts with this
+  private String recoveryLogBase = null;
+  private transient File recoveryDirectory;
+  private transient RecoveryLog recoveryLog;
+
+  // with group commit, logged tuples are held until the log is forced after commitInterval ms
+  // or once commitBytes bytes are waiting, whichever comes first
+  private boolean groupCommit = false;
+  private long commitInterval;
+  private int commitBytes;
+  private transient GroupCommitLog<Tuple> groupLog;
+
+  // for sliding windows, each reporting interval is one slice of a window that is windowSlices
+  // long and the window totals are emitted every hopSlices slices.  Tuples are held until the
+  // next emit so that they can anchor it
+  private int windowSlices = 0;
+  private int hopSlices = 1;
+  private transient SlidingCounts sliding;
+  private transient List<Tuple> unemitted;
+  private transient long slicesSinceEmit;
+
+  // in event-time mode, tuples are counted into the window that contains their time stamp.
+  // Windows stay open until the watermark passes their end by allowedLateness ms
+  private String eventTimeField = null;
+  private long allowedLateness;
+  private transient TreeMap<Long, Window> openWindows;
+  private transient Watermark watermark;
+  private transient long closedBefore;
+  private transient int openEvents;
+  private transient long openBytes;
+  private final AtomicInteger lateEvents = new AtomicInteger();
+
+  // in top-k mode, each window keeps topKCapacity counters and emits the topK largest
+  private int topK = 0;
+  private int topKCapacity;
+
+  // in sketch mode, each window keeps a Count-Min sketch per key with these error bounds
+  private double sketchEpsilon = 0;
+  private double sketchDelta;
+
+  // in distinct count mode, each window keeps a HyperLogLog sketch per key with this precision
+  private int distinctPrecision = 0;
+
+  // if set, input tuples are (key, value, count) deltas from an upstream counter
+  private boolean partialCounts = false;
+
+  // how output tuples are anchored to the inputs that went into them
+  private Anchoring anchoring = Anchoring.PAIR;
+
+  // in delta mode, changes are held per pair until they reach deltaThreshold or are deltaMaxAge ms
+  // old.  The time a pair became pending is kept offset by one from deltaEpoch since a zero count
+  // means no entry.  The input tuples for a pending pair are held so that they can anchor it
+  private long deltaThreshold = 0;
+  private long deltaMaxAge;
+  private transient PairCountTable<String, String> pending;
+  private transient PairCountTable<String, String> pendingSince;
+  private transient Map<String, Map<String, List<Tuple>>> pendingTuples;
+  private transient long deltaEpoch;
+  private transient long epoch;
+  private transient long sequence;
+  private transient int taskId;
+
+  // if set, a background thread checks this often whether the current window should be closed.
+  // Flushes from the thread and from execute are serialized by flushLock
+  private long flushCheckInterval = 0;
+  private transient ScheduledExecutorService flusher;
+  private transient Object flushLock;
+  // set if a background flush threw.  The window it was emitting may be lost so nothing more is
+  // flushed and execute rethrows the failure to restart the worker
+  private transient volatile RuntimeException flushFailure;
+
+  // if set, a window's count table is written to sorted runs in this directory whenever its pairs
+  // take more than maxCountBytes
+  private String spillBase = null;
+  private long maxCountBytes;
+  private transient File spillDirectory;
+
+  // if set, running totals are published after each window.  Readers get the latest through a
+  // single volatile read
+  private boolean publishSnapshots = false;
+  private transient volatile CountSnapshot snapshot;
+
   // when did we last record output?
-  private long lastRecordOutput = 0;
+  private volatile long lastRecordOutput = 0;
+
+  // decides when windows close.  Only replaced by tests
+  private Clock clock = Clock.SYSTEM;
 
   public CounterBolt() {
     this(10 * 1000, 100000);
   }
 
   public CounterBolt(long reportingInterval, int maxBufferedTuples) {
+    this(reportingInterval, maxBufferedTuples, false);
+  }
+
+  public CounterBolt(long reportingInterval, int maxBufferedTuples, boolean countOnArrival) {
     this.reportingInterval = reportingInterval;
     this.maxBufferedTuples = maxBufferedTuples;
+    this.countOnArrival = countOnArrival;
+  }
+
+  /**
+   * Logs all incoming items so that counts that have not yet been emitted survive a crash.  Each
+   * task keeps its log in a directory named by appending the component and task id to base.
+   *
+   * @param base The prefix for the recovery log directory.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withRecoveryLog(String base) {
+    this.recoveryLogBase = base;
+    return this;
+  }
+
+  /**
+   * Acknowledges logged items only once they have been forced to disk so that they survive a
+   * machine crash as well as a worker crash.  Has no effect without a recovery log.
+   * <p/>
+   * The log is forced and the tuples acknowledged by a background thread so that a commit
+   * happens on time even if no more tuples arrive.
+   *
+   * @param commitInterval The longest time in ms that an item waits for the log to be forced.
+   * @param commitBytes    The log is forced early if this many bytes are waiting.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withGroupCommit(long commitInterval, int commitBytes) {
+    this.groupCommit = true;
+    this.commitInterval = commitInterval;
+    this.commitBytes = commitBytes;
+    return this;
+  }
+
+  /**
+   * Emits counts over a window several reporting intervals long instead of over a single
+   * reporting interval.  For example, with a reporting interval of 10 seconds, a window of 30
+   * slices emitted every slice gives the counts for the last 5 minutes every 10 seconds.  Each
+   * emit only adds the newest slice to the running totals and subtracts the slices that have
+   * expired.
+   * <p/>
+   * Counts recovered from a recovery log after a restart all go into the current slice since the
+   * log doesn't record which slice an event belonged to.
+   *
+   * @param windowSlices The length of the window in reporting intervals.
+   * @param hopSlices    How many reporting intervals pass between emits.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withSlidingWindow(int windowSlices, int hopSlices) {
+    if (windowSlices < 1 || hopSlices < 1) {
+      throw new IllegalArgumentException("Window and hop must each be at least one slice");
+    }
+    this.windowSlices = windowSlices;
+    this.hopSlices = hopSlices;
+    return this;
+  }
+
+  /**
+   * Counts tuples in windows based on a time stamp in each tuple rather than the time they
+   * arrive.  Each window is emitted once the watermark, which is the latest time stamp seen from
+   * the slowest source, passes the end of the window by allowedLateness.  Tuples that arrive for
+   * a window that has already been emitted are acknowledged and dropped.  No window is closed by
+   * the watermark until every task of every upstream component has sent at least one tuple, so a
+   * source that starts late doesn't have its first tuples dropped.
+   * <p/>
+   * The number of tuples held in open windows is still limited by maxBufferedTuples.  If that
+   * limit is reached, the oldest windows are emitted early.
+   * <p/>
+   * Event time can't be combined with a recovery log or sliding windows.  Output tuples carry the
+   * start of the window as an extra "window" field.
+   *
+   * @param timeField       The name of the field holding the time stamp in ms.
+   * @param allowedLateness How far behind the watermark a tuple can be and still be counted.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withEventTime(String timeField, long allowedLateness) {
+    this.eventTimeField = timeField;
+    this.allowedLateness = allowedLateness;
+    return this;
+  }
+
+  /**
+   * Emits only the k most frequent pairs in each window.  Pairs are counted with the Space-Saving
+   * algorithm so memory use is fixed no matter how many distinct pairs there are.  Each output
+   * tuple carries an extra "error" field.  The true count of the pair in that window is between
+   * count - error and count, and the error is never more than epsilon times the number of tuples
+   * in the window.
+   * <p/>
+   * Top-k can't be combined with sliding windows or event time.
+   *
+   * @param k       How many pairs to emit per window.
+   * @param epsilon The largest error in a count as a fraction of the tuples in the window.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withTopK(int k, double epsilon) {
+    if (k < 1 || epsilon <= 0 || epsilon >= 1) {
+      throw new IllegalArgumentException("Need k at least 1 and epsilon between 0 and 1");
+    }
+    this.topK = k;
+    this.topKCapacity = SpaceSaving.capacityFor(k, epsilon);
+    return this;
+  }
+
+  /**
+   * Counts the values for each key approximately in a Count-Min sketch.  Memory per key is fixed
+   * by epsilon and delta no matter how many distinct values there are.  At the end of each window,
+   * one tuple is emitted per key with fields "key", "sketch" and "count" where the sketch is
+   * serialized by {@link CountMinSketch#toBytes()} and count is the number of tuples for the key.
+   * Sketches for the same key can be merged downstream with {@link CountMinSketch#merge}.
+   * <p/>
+   * Sketches can't be combined with top-k, sliding windows or event time.
+   *
+   * @param epsilon The error in an estimated count as a fraction of the tuples for the key.
+   * @param delta   The probability that an estimate is off by more than that.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withSketch(double epsilon, double delta) {
+    // fail now rather than when the first window opens
+    CountMinSketch.forError(epsilon, delta);
+    this.sketchEpsilon = epsilon;
+    this.sketchDelta = delta;
+    return this;
+  }
+
+  /**
+   * Counts how many distinct values each key has instead of how often each value occurs.  The
+   * values for each key go into a HyperLogLog sketch that stays sparse while the key has few
+   * values and never grows past 2^precision bytes.  At the end of each window, one tuple is
+   * emitted per key with fields "key", "sketch" and "distinct" where the sketch is serialized by
+   * {@link HyperLogLog#toBytes()} and distinct is the estimated number of distinct values.
+   * Sketches for the same key can be merged downstream with {@link HyperLogLog#merge} to get the
+   * distinct count over several windows or tasks.
+   * <p/>
+   * Distinct counts can't be combined with top-k, Count-Min sketches, sliding windows or event
+   * time.
+   *
+   * @param precision The log base 2 of the number of registers.  12 gives about 1.6% error.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withDistinctCounts(int precision) {
+    // fail now rather than when the first window opens
+    new HyperLogLog(precision);
+    this.distinctPrecision = precision;
+    return this;
+  }
+
+  /**
+   * Treats each input tuple as a (key, value, count) delta rather than a single event, which is
+   * what another CounterBolt emits.  This lets a first stage of counters behind a shuffle grouping
+   * pre-aggregate a hot key across many tasks while this bolt merges their output.  In distinct
+   * count mode the count is ignored.
+   * <p/>
+   * Partial counts can't be combined with a recovery log since the log only records keys and
+   * values.  The upstream counters hold their input until this bolt acknowledges their output, so
+   * nothing is lost if this bolt fails.
+   *
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withPartialCounts() {
+    this.partialCounts = true;
+    return this;
+  }
+
+  /**
+   * Chooses how output tuples are anchored.  See {@link Anchoring} for the choices.
+   *
+   * @param anchoring The anchoring scheme.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withAnchoring(Anchoring anchoring) {
+    this.anchoring = anchoring;
+    return this;
+  }
+
+  /**
+   * Emits changes in counts instead of the counts for each window.  The change for a pair is held
+   * back until it adds up to at least threshold in either direction or until it is maxAge ms old,
+   * so pairs that change a little at a time don't cause an output tuple in every window.  Pairs
+   * that don't change aren't emitted at all.
+   * <p/>
+   * Output tuples have fields "key", "value", "delta", "task", "epoch" and "seq".  The epoch is
+   * the wall clock time in ms when the task was prepared and the sequence number goes up by one
+   * each time the task emits a window, starting again from 1 in each epoch.  Task ids are reused
+   * when a worker restarts, so a store that wants to drop duplicate or out of order deliveries
+   * should keep the last (epoch, seq) it applied for each pair and task and ignore anything that
+   * isn't newer in that order.
+   * <p/>
+   * That is as far as the sequence goes.  Input tuples are acknowledged once their change has
+   * been emitted, so when a delta tuple fails downstream, the spout replays its inputs, they are
+   * counted again and they show up in a later delta with a newer sequence number.  A store that
+   * had already applied the failed delta then counts those inputs twice.  Deltas are delivered at
+   * least once, not exactly once.
+   * <p/>
+   * Input tuples are acknowledged when the change they contributed to is emitted, so maxAge should
+   * be well under the topology message timeout.  Outputs are always anchored per pair.  Deltas
+   * can't be combined with a recovery log, top-k, sketches, distinct counts, sliding windows or
+   * event time.
+   *
+   * @param threshold The smallest change worth emitting right away.
+   * @param maxAge    The longest time in ms that a change is held back.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withDeltas(long threshold, long maxAge) {
+    if (threshold < 1 || maxAge < 0) {
+      throw new IllegalArgumentException("Threshold must be positive and max age can't be negative");
+    }
+    this.deltaThreshold = threshold;
+    this.deltaMaxAge = maxAge;
+    return this;
+  }
+
+  /**
+   * Emits the current window early once the tuples and counts held for it are estimated to take
+   * more than maxBufferedBytes of heap.  The estimate counts retained tuples, the strings in them
+   * and the entries in the count tables.  It is meant to stop a burst of tuples with long or
+   * mostly distinct values from exhausting the heap, which a limit on the number of tuples alone
+   * can't do.  In event-time mode, the limit applies to all open windows together.
+   *
+   * @param maxBufferedBytes The limit in bytes.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withMemoryLimit(long maxBufferedBytes) {
+    if (maxBufferedBytes < 1) {
+      throw new IllegalArgumentException("Memory limit must be positive");
+    }
+    this.maxBufferedBytes = maxBufferedBytes;
+    return this;
+  }
+
+  /**
+   * Closes windows from a background thread as well as from execute so that each window is emitted
+   * within about checkInterval ms of its end even if no more tuples arrive.  Otherwise the last
+   * window before a pause is held until the next tuple arrives, by which time its tuples may have
+   * timed out and been replayed.
+   * <p/>
+   * Can't be combined with event time since event-time windows are closed by the watermark.
+   *
+   * @param checkInterval How often in ms the thread checks whether a window has ended.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withBackgroundFlush(long checkInterval) {
+    if (checkInterval < 1) {
+      throw new IllegalArgumentException("Check interval must be at least 1 ms");
+    }
+    this.flushCheckInterval = checkInterval;
+    return this;
+  }
+
+  /**
+   * Lets the count table for a window spill to disk instead of growing without bound when a
+   * window has more distinct pairs than expected.  Once the pairs in the table are estimated to
+   * take more than maxCountBytes, they are written to a file sorted by key and value and the table
+   * starts over.  When the window is emitted, the files and the table are merged in one streaming
+   * pass so the counts are still exact.  Each task spills into a directory named by appending the
+   * component and task id to base.
+   * <p/>
+   * Holding on to every input tuple until the window is emitted would take as much memory as the
+   * counts, so spilling needs a recovery log.  Tuples are then acknowledged as soon as they are
+   * logged, nothing but the counts is kept for the window, and the output isn't anchored.  If the
+   * worker dies, the window is counted again from the log.  Spilling can't be combined with
+   * top-k, sketches, distinct counts, sliding windows, event time, deltas or snapshots since all
+   * of those keep their state in memory anyway.
+   * <p/>
+   * Since a spilling window holds no tuples, maxBufferedTuples no longer closes it early and only
+   * the reporting interval does.  The memory held for the window is its count table, which
+   * spilling keeps under maxCountBytes.  A limit set with {@link #withMemoryLimit(long)} still
+   * applies to that table, so it has to be above maxCountBytes or the window would be emitted
+   * early instead of spilling.
+   *
+   * @param base          The prefix for the spill directory.
+   * @param maxCountBytes The estimated size of the count table at which it is spilled.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withSpill(String base, long maxCountBytes) {
+    if (maxCountBytes < 1) {
+      throw new IllegalArgumentException("Spill limit must be positive");
+    }
+    this.spillBase = base;
+    this.maxCountBytes = maxCountBytes;
+    return this;
+  }
+
+  /**
+   * Publishes the running totals for every pair as a {@link CountSnapshot} each time a window is
+   * emitted.  {@link #getSnapshot()} returns the latest one to any thread without locking, so
+   * metrics, debug dumps or a query server in the same worker can read consistent totals while
+   * this bolt goes on counting.  The totals cover every pair seen since the bolt started so this
+   * is best kept for streams with a bounded number of distinct pairs.
+   * <p/>
+   * Can't be combined with top-k, sketches or distinct counts since those don't keep exact
+   * counts for each pair.
+   *
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public CounterBolt withSnapshots() {
+    this.publishSnapshots = true;
+    return this;
+  }
+
+  /**
+   * Replaces the clock that decides when windows close so that tests can move time forward
+   * themselves.
+   *
+   * @param clock The clock to read.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  CounterBolt withClock(Clock clock) {
+    this.clock = clock;
+    return this;
   }
 
   @Override
   public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
-    this.outputCollector = outputCollector;
+    // the flush and commit threads emit and acknowledge alongside execute
+    boolean threads = flushCheckInterval > 0 || (groupCommit && recoveryLogBase != null);
+    this.outputCollector = threads ? new SynchronizedCollector(outputCollector) : outputCollector;
+
+    int summaries = (topK > 0 ? 1 : 0) + (sketchEpsilon > 0 ? 1 : 0) + (distinctPrecision > 0 ? 1 : 0);
+    if (summaries > 1 || (summaries > 0 && (eventTimeField != null || windowSlices > 0))) {
+      throw new IllegalStateException("Top-k, sketches and distinct counts can't be combined with each other, event time or sliding windows");
+    }
+    if (partialCounts && recoveryLogBase != null) {
+      throw new IllegalStateException("Partial counts can't be combined with a recovery log");
+    }
+    if (flushCheckInterval > 0 && eventTimeField != null) {
+      throw new IllegalStateException("Background flush can't be combined with event time");
+    }
+    if (deltaThreshold > 0) {
+      if (summaries > 0 || recoveryLogBase != null || windowSlices > 0 || eventTimeField != null) {
+        throw new IllegalStateException("Deltas can't be combined with a recovery log, summaries, sliding windows or event time");
+      }
+      pending = new PairCountTable<String, String>();
+      pendingSince = new PairCountTable<String, String>();
+      pendingTuples = Maps.newHashMap();
+      deltaEpoch = Long.MIN_VALUE;
+      // a restarted task gets a new epoch so its sequence numbers aren't mistaken for old ones
+      epoch = System.currentTimeMillis();
+      sequence = 0;
+      taskId = topologyContext != null ? topologyContext.getThisTaskId() : 0;
+    }
+    if (publishSnapshots) {
+      if (summaries > 0) {
+        throw new IllegalStateException("Snapshots can't be combined with top-k, sketches or distinct counts");
+      }
+      snapshot = CountSnapshot.EMPTY;
+    }
+    if (spillBase != null) {
+      if (summaries > 0 || windowSlices > 0 || eventTimeField != null || deltaThreshold > 0 || publishSnapshots) {
+        throw new IllegalStateException("Spilling can't be combined with summaries, sliding windows, event time, deltas or snapshots");
+      }
+      if (recoveryLogBase == null) {
+        throw new IllegalStateException("Spilling needs a recovery log so that input tuples don't have to be held");
+      }
+      if (maxBufferedBytes > 0 && maxBufferedBytes <= maxCountBytes) {
+        throw new IllegalStateException("The spill limit must be below the memory limit or windows are emitted before they spill");
+      }
+      spillDirectory = topologyContext != null
+          ? new File(spillBase + topologyContext.getThisComponentId() + "-" + topologyContext.getThisTaskId())
+          : new File(spillBase);
+      if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+        throw new IllegalStateException("Could not create spill directory " + spillDirectory);
+      }
+      SpilledCounts.deleteStaleRuns(spillDirectory);
+    }
+    // the first window was built before the bolt was configured
+    window.set(new Window());
+    flushLock = new Object();
+
+    if (eventTimeField != null) {
+      if (recoveryLogBase != null || windowSlices > 0) {
+        throw new IllegalStateException("Event time can't be combined with a recovery log or sliding windows");
+      }
+      openWindows = new TreeMap<Long, Window>();
+      watermark = new Watermark(topologyContext != null ? sourceTasks(topologyContext) : null);
+      closedBefore = Long.MIN_VALUE;
+      openEvents = 0;
+      openBytes = 0;
+    }
+
+    if (windowSlices > 0) {
+      sliding = new SlidingCounts(windowSlices);
+      unemitted = Lists.newArrayList();
+      slicesSinceEmit = 0;
+    }
+
+    if (recoveryLogBase != null) {
+      recoveryDirectory = new File(recoveryLogBase + topologyContext.getThisComponentId() + "-" + topologyContext.getThisTaskId());
+      try {
+        final Window recovered = window.get();
+        long n = RecoveryLog.replay(recoveryDirectory, Snapshot.read(recoveryDirectory), new RecoveryLog.Listener() {
+          @Override
+          public void event(String key, String value) {
+            recovered.count(key, value);
+          }
+        });
+        logger.info(String.format("Recovered %d events from %s", n, recoveryDirectory));
+        recoveryLog = new RecoveryLog(recoveryDirectory, LOG_SEGMENT_SIZE);
+        if (groupCommit) {
+          groupLog = new GroupCommitLog<Tuple>(recoveryLog, commitInterval, commitBytes, new GroupCommitLog.Listener<Tuple>() {
+            @Override
+            public void committed(List<Tuple> tuples) {
+              for (Tuple tuple : tuples) {
+                CounterBolt.this.outputCollector.ack(tuple);
+              }
+            }
+          });
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Can't open recovery log in " + recoveryDirectory, e);
+      }
+    }
+
+    if (flushCheckInterval > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "counter-flush");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      flusher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            recordCounts(false);
+          } catch (RuntimeException e) {
+            // rethrowing cancels all later checks, which is what we want since a later snapshot
+            // would cover a window that was never emitted
+            logger.error("Background flush failed", e);
+            flushFailure = e;
+            throw e;
+          }
+        }
+      }, flushCheckInterval, flushCheckInterval, TimeUnit.MILLISECONDS);
+    }
   }
 
   /**
@@ -93,10 +695,140 @@ public class CounterBolt implements IRichBolt {
    */
   @Override
   public void execute(Tuple tuple) {
-    tupleLog.get().add(tuple);
+    if (flushFailure != null) {
+      throw new RuntimeException("Background flush failed", flushFailure);
+    }
+    if (eventTimeField != null) {
+      countByEventTime(tuple);
+      return;
+    }
+
+    final Window w = enterWindow();
+    try {
+      if (recoveryLog != null) {
+        final String key = tuple.getString(0);
+        final String value = tuple.getString(1);
+        try {
+          if (groupLog != null) {
+            groupLog.append(key, value, tuple);
+          } else {
+            recoveryLog.append(key, value);
+            outputCollector.ack(tuple);
+          }
+        } catch (IOException e) {
+          logger.warn("Could not write to recovery log", e);
+          outputCollector.fail(tuple);
+          return;
+        }
+        w.count(key, value);
+      } else if (countOnArrival) {
+        w.add(tuple);
+      } else {
+        w.buffer(tuple);
+        tupleLog.get().add(tuple);
+      }
+    } finally {
+      w.exit();
+    }
     recordCounts(false);
   }
 
+  /**
+   * Gets the current window and marks it as being updated so that a flush from the background
+   * thread waits until the update is done.  If a flush is already taking over the window, waits
+   * for the flush to put a new window in place.
+   */
+  private Window enterWindow() {
+    while (true) {
+      Window w = window.get();
+      if (w.enter()) {
+        return w;
+      }
+      Thread.yield();
+    }
+  }
+
+  private static long tupleBytes(Tuple tuple) {
+    return TUPLE_BYTES + stringBytes(tuple.getString(0)) + stringBytes(tuple.getString(1));
+  }
+
+  private static long stringBytes(String s) {
+    return STRING_BYTES + 2 * s.length();
+  }
+
+  private void countByEventTime(Tuple tuple) {
+    final long time = ((Number) tuple.getValueByField(eventTimeField)).longValue();
+    final long start = (time / reportingInterval) * reportingInterval;
+
+    if (start < closedBefore) {
+      // too late, this window has already been emitted
+      lateEvents.incrementAndGet();
+      outputCollector.ack(tuple);
+      return;
+    }
+
+    Window w = openWindows.get(start);
+    if (w == null) {
+      w = new Window();
+      openWindows.put(start, w);
+    }
+    long before = w.bytes;
+    w.add(tuple);
+    openEvents++;
+    openBytes += w.bytes - before;
+
+    long mark = watermark.update(tuple.getSourceTask(), time);
+    if (mark != Long.MIN_VALUE) {
+      closeWindows(mark - allowedLateness);
+    }
+    while (openEvents > maxBufferedTuples || overMemoryLimit(openBytes)) {
+      logger.info("Closing event time window early due to max tuples or memory");
+      closeWindow(openWindows.firstKey());
+    }
+  }
+
+  /**
+   * The tasks of every component that this bolt subscribes to.
+   */
+  private static List<Integer> sourceTasks(TopologyContext topologyContext) {
+    List<Integer> r = Lists.newArrayList();
+    Map<GlobalStreamId, Grouping> sources = topologyContext.getThisSources();
+    if (sources != null) {
+      Set<String> components = Sets.newHashSet();
+      for (GlobalStreamId stream : sources.keySet()) {
+        if (components.add(stream.get_componentId())) {
+          r.addAll(topologyContext.getComponentTasks(stream.get_componentId()));
+        }
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Emits all open event time windows that end at or before the given time.
+   */
+  private void closeWindows(long end) {
+    while (!openWindows.isEmpty() && openWindows.firstKey() + reportingInterval <= end) {
+      closeWindow(openWindows.firstKey());
+    }
+  }
+
+  private void closeWindow(long start) {
+    Window w = openWindows.remove(start);
+    openEvents -= w.size();
+    openBytes -= w.bytes;
+    closedBefore = Math.max(closedBefore, start + reportingInterval);
+
+    Anchors anchors = new Anchors(w.tuples, false);
+    PairCountTable.Cursor<String, String> entries = w.counts.cursor();
+    while (entries.next()) {
+      outputCollector.emit(anchors.forPair(entries.first(), entries.second()), new Values(entries.first(), entries.second(), entries.count(), start));
+    }
+    anchors.ackAll();
+    count.addAndGet((int) w.total);
+    publish(w.counts);
+  }
+
   /**
    * Records and then clears all pending counts if we have crossed a window boundary
    * or have a bunch of data accumulated or if forced.
@@ -108,56 +840,582 @@ public class CounterBolt implements IRichBolt {
       lastRecordOutput = currentRecordWindowStart;
     }
 
-    final int bufferedTuples = tupleLog.get().size();
-    if (force || currentRecordWindowStart > lastRecordOutput || bufferedTuples > maxBufferedTuples) {
-      if (force) {
-        logger.info("Forced recording");
-      } else if (bufferedTuples > maxBufferedTuples) {
-        logger.info("Recording due to max tuples");
-      } else {
-        logger.info("Recording due to time");
+    if (force || due(currentRecordWindowStart)) {
+      // execute and the background thread may both decide that a flush is due
+      synchronized (flushLock) {
+        if (force || due(currentRecordWindowStart)) {
+          flush(force, currentRecordWindowStart);
+        }
+      }
+    }
+  }
+
+  private boolean due(long currentRecordWindowStart) {
+    return currentRecordWindowStart > lastRecordOutput || overTupleLimit() || overMemoryLimit(window.get().bytes);
+  }
+
+  // a spilling window holds no tuples and spilling keeps its counts in bounds, so the tuple limit
+  // doesn't apply
+  private boolean overTupleLimit() {
+    return spillDirectory == null && bufferedTuples() > maxBufferedTuples;
+  }
+
+  private boolean overMemoryLimit(long bytes) {
+    return maxBufferedBytes > 0 && bytes > maxBufferedBytes;
+  }
+
+  private int bufferedTuples() {
+    return window.get().size() + tupleLog.get().size();
+  }
+
+  // must hold flushLock
+  private void flush(boolean force, long currentRecordWindowStart) {
+    if (force) {
+      logger.info("Forced recording");
+    } else if (overTupleLimit()) {
+      logger.info("Recording due to max tuples");
+    } else if (overMemoryLimit(window.get().bytes)) {
+      logger.info("Recording due to memory limit");
+    } else {
+      logger.info("Recording due to time");
+    }
+
+    // keep execute out of the old window until a new one is in place.  That way every tuple
+    // logged before the snapshot position is counted in the old window and none after it
+    final Window oldWindow = window.get();
+    oldWindow.seal();
+
+    // anything still waiting for a commit is about to be covered by the snapshot so it has to
+    // be acknowledged now or a replay from Storm would count it again.  If the log can't be
+    // forced we have to stop since these tuples have already been counted
+    if (groupLog != null) {
+      try {
+        groupLog.commit();
+      } catch (RuntimeException e) {
+        oldWindow.unseal();
+        throw e;
       }
+    }
 
-      // atomic get and set avoids the need to locks and still avoids races
-      // grabbing the entire queue at once avoids contention as we count the queue elements
-      Queue<Tuple> oldLog = tupleLog.getAndSet(new LinkedBlockingQueue<Tuple>());
+    // grabbing the entire queue at once avoids contention as we count the queue elements
+    // the window may hold counts even when tuples are buffered if they were recovered from the log
+    final RecoveryLog.Position snapshot = recoveryLog != null ? recoveryLog.position() : null;
+    final Collection<Tuple> oldLog;
+    if (countOnArrival || recoveryLog != null) {
+      oldLog = oldWindow.tuples;
+    } else {
+      oldLog = tupleLog.getAndSet(new LinkedBlockingQueue<Tuple>());
+    }
+    window.set(new Window());
 
-      Multiset<String> counts = HashMultiset.create();
+    final PairCountTable<String, String> counts = oldWindow.counts;
+    if (!countOnArrival && recoveryLog == null) {
       for (Tuple tuple : oldLog) {
-        counts.add(tuple.getString(0) + "\t" + tuple.getString(1));
+        oldWindow.count(tuple);
       }
+    }
+
+    count.addAndGet((int) oldWindow.total);
+    if (oldWindow.heavy != null) {
+      emitTop(oldWindow.heavy, oldLog);
+    } else if (oldWindow.sketches != null) {
+      emitSketches(oldWindow.sketches, oldLog);
+    } else if (oldWindow.distinct != null) {
+      emitDistinct(oldWindow.distinct, oldLog);
+    } else if (oldWindow.spilled != null) {
+      emitSpilled(oldWindow.spilled, counts);
+    } else if (pending != null) {
+      emitDeltas(counts, oldLog, currentRecordWindowStart, force);
+    } else if (sliding == null) {
+      emit(counts, oldLog);
+    } else {
+      // whatever we have counted so far belongs to the slice that started at lastRecordOutput
+      sliding.add(counts);
+      unemitted.addAll(oldLog);
 
-      // record all keys
-      for (String keyValue : counts.elementSet()) {
-        final int n = counts.count(keyValue);
-        outputCollector.emit(oldLog, new Values(keyValue, n));
-        count.addAndGet(n);
+      // if no tuples arrived for a while, skip the empty slices so that the totals cover the
+      // window that ends now
+      long elapsed = (currentRecordWindowStart - lastRecordOutput) / reportingInterval;
+      if (elapsed > 1) {
+        sliding.advance(elapsed - 1);
       }
-      logger.info(String.format("Logged %d events", count.get()));
+      slicesSinceEmit += elapsed;
+      if (force || slicesSinceEmit >= hopSlices) {
+        emit(sliding.totals(), unemitted);
+        unemitted = Lists.newArrayList();
+        slicesSinceEmit = 0;
+      }
+      if (elapsed > 0) {
+        sliding.advance(1);
+      }
+    }
+    publish(counts);
+    logger.info(String.format("Logged %d events", count.get()));
 
-      for (Tuple tuple : oldLog) {
+    if (snapshot != null) {
+      try {
+        Snapshot.write(recoveryDirectory, snapshot);
+        recoveryLog.deleteBefore(snapshot);
+      } catch (IOException e) {
+        // not fatal, the next snapshot will catch up but a crash before then will re-emit counts
+        logger.warn("Could not write snapshot to " + recoveryDirectory, e);
+      }
+    }
+    lastRecordOutput = currentRecordWindowStart;
+  }
+
+  /**
+   * Adds a window's counts to the running totals and makes the result visible to readers.  Only
+   * one thread emits windows at a time so the read and write of snapshot can't race.
+   */
+  private void publish(PairCountTable<String, String> counts) {
+    if (publishSnapshots && !counts.isEmpty()) {
+      snapshot = snapshot.plus(counts, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Emits all counts anchored to the tuples that went into them and then acknowledges those
+   * tuples.
+   */
+  private void emit(PairCountTable<String, String> counts, Collection<Tuple> tuples) {
+    Anchors anchors = new Anchors(tuples, false);
+    PairCountTable.Cursor<String, String> entries = counts.cursor();
+    while (entries.next()) {
+      outputCollector.emit(anchors.forPair(entries.first(), entries.second()), new Values(entries.first(), entries.second(), entries.count()));
+    }
+    anchors.ackAll();
+  }
+
+  /**
+   * Merges the runs spilled for a window with the counts still in memory and emits the result.
+   * The input tuples were acknowledged when they were logged so there is nothing to anchor to.
+   * The runs are only deleted once the merge is done.  If they can't be read, the exception stops
+   * the bolt before a snapshot is written, so the window is counted again from the recovery log
+   * after a restart and the runs left behind are cleared by prepare.  Pairs that were emitted
+   * before the failure are emitted again then.
+   */
+  private void emitSpilled(SpilledCounts spilled, PairCountTable<String, String> counts) {
+    final List<Tuple> none = Collections.emptyList();
+    try {
+      spilled.merge(counts, new SpilledCounts.Listener() {
+        @Override
+        public void pair(String key, String value, long count) {
+          outputCollector.emit(none, new Values(key, value, count));
+        }
+      });
+    } catch (IOException e) {
+      throw new RuntimeException("Could not merge counts spilled to " + spillDirectory, e);
+    }
+    spilled.delete();
+  }
+
+  /**
+   * Adds the counts for a window to the pending changes and emits the changes that are big enough
+   * or old enough, or all of them if forced.  Each emitted change is anchored to the tuples that
+   * went into it, which are then acknowledged.
+   */
+  private void emitDeltas(PairCountTable<String, String> counts, Collection<Tuple> tuples, long now, boolean force) {
+    if (deltaEpoch == Long.MIN_VALUE) {
+      deltaEpoch = now;
+    }
+    sequence++;
+
+    PairCountTable.Cursor<String, String> entries = counts.cursor();
+    while (entries.next()) {
+      if (pendingSince.get(entries.first(), entries.second()) == 0) {
+        pendingSince.add(entries.first(), entries.second(), now - deltaEpoch + 1);
+      }
+      pending.add(entries.first(), entries.second(), entries.count());
+    }
+    for (Tuple tuple : tuples) {
+      pendingTuplesFor(tuple.getString(0), tuple.getString(1)).add(tuple);
+    }
+
+    // can't remove entries while stepping through the table so the pairs to emit are collected first
+    List<String> keys = Lists.newArrayList();
+    List<String> values = Lists.newArrayList();
+    entries = pendingSince.cursor();
+    while (entries.next()) {
+      long delta = pending.get(entries.first(), entries.second());
+      long age = now - (deltaEpoch + entries.count() - 1);
+      if (force || Math.abs(delta) >= deltaThreshold || age >= deltaMaxAge) {
+        keys.add(entries.first());
+        values.add(entries.second());
+      }
+    }
+
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      String value = values.get(i);
+      long delta = pending.get(key, value);
+      List<Tuple> anchors = pendingTuplesFor(key, value);
+      if (delta != 0) {
+        outputCollector.emit(anchors, new Values(key, value, delta, taskId, epoch, sequence));
+      }
+      for (Tuple tuple : anchors) {
         outputCollector.ack(tuple);
       }
-      lastRecordOutput = currentRecordWindowStart;
+
+      pending.add(key, value, -delta);
+      pendingSince.add(key, value, -pendingSince.get(key, value));
+      Map<String, List<Tuple>> byValue = pendingTuples.get(key);
+      byValue.remove(value);
+      if (byValue.isEmpty()) {
+        pendingTuples.remove(key);
+      }
+    }
+  }
+
+  private List<Tuple> pendingTuplesFor(String key, String value) {
+    Map<String, List<Tuple>> byValue = pendingTuples.get(key);
+    if (byValue == null) {
+      byValue = Maps.newHashMap();
+      pendingTuples.put(key, byValue);
     }
+    List<Tuple> r = byValue.get(value);
+    if (r == null) {
+      r = Lists.newArrayList();
+      byValue.put(value, r);
+    }
+    return r;
+  }
+
+  /**
+   * Emits the largest counts with their error bounds, anchored like {@link #emit}.  Tuples for
+   * pairs that don't make the top k are acknowledged without anchoring anything.
+   */
+  private void emitTop(SpaceSaving<String, String> heavy, Collection<Tuple> tuples) {
+    Anchors anchors = new Anchors(tuples, false);
+    for (SpaceSaving.Counter<String, String> c : heavy.top(topK)) {
+      outputCollector.emit(anchors.forPair(c.getFirst(), c.getSecond()), new Values(c.getFirst(), c.getSecond(), c.getCount(), c.getError()));
+    }
+    anchors.ackAll();
+  }
+
+  /**
+   * Emits one serialized sketch per key, anchored to the tuples for that key.
+   */
+  private void emitSketches(Map<String, CountMinSketch> sketches, Collection<Tuple> tuples) {
+    Anchors anchors = new Anchors(tuples, true);
+    for (Map.Entry<String, CountMinSketch> entry : sketches.entrySet()) {
+      outputCollector.emit(anchors.forKey(entry.getKey()), new Values(entry.getKey(), entry.getValue().toBytes(), entry.getValue().total()));
+    }
+    anchors.ackAll();
+  }
+
+  /**
+   * Emits one serialized HyperLogLog sketch per key, anchored to the tuples for that key.
+   */
+  private void emitDistinct(Map<String, HyperLogLog> distinct, Collection<Tuple> tuples) {
+    Anchors anchors = new Anchors(tuples, true);
+    for (Map.Entry<String, HyperLogLog> entry : distinct.entrySet()) {
+      outputCollector.emit(anchors.forKey(entry.getKey()), new Values(entry.getKey(), entry.getValue().toBytes(), entry.getValue().cardinality()));
+    }
+    anchors.ackAll();
   }
 
   private long now() {
-    return System.nanoTime() / 1000000;
+    return clock.now();
   }
 
   @Override
   public void cleanup() {
-    recordCounts(true);
+    if (flusher != null) {
+      flusher.shutdown();
+      try {
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (eventTimeField != null) {
+      closeWindows(Long.MAX_VALUE);
+      if (lateEvents.get() > 0) {
+        logger.warn(String.format("Dropped %d events that arrived after their window closed", lateEvents.get()));
+      }
+    } else if (flushFailure == null) {
+      recordCounts(true);
+    }
+    if (groupLog != null) {
+      groupLog.close();
+    }
+    if (recoveryLog != null) {
+      try {
+        recoveryLog.close();
+      } catch (IOException e) {
+        logger.warn("Could not close recovery log", e);
+      }
+    }
     logger.warn(String.format("Shutting down.  Total events logged = %d\n", count.get()));
   }
 
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {
-    declarer.declare(new Fields("keyValue", "count"));
+    if (eventTimeField != null) {
+      declarer.declare(new Fields("key", "value", "count", "window"));
+    } else if (topK > 0) {
+      declarer.declare(new Fields("key", "value", "count", "error"));
+    } else if (sketchEpsilon > 0) {
+      declarer.declare(new Fields("key", "sketch", "count"));
+    } else if (distinctPrecision > 0) {
+      declarer.declare(new Fields("key", "sketch", "distinct"));
+    } else if (deltaThreshold > 0) {
+      declarer.declare(new Fields("key", "value", "delta", "task", "epoch", "seq"));
+    } else {
+      declarer.declare(new Fields("key", "value", "count"));
+    }
   }
 
   public int getTotal() {
     return count.get();
   }
+
+  /**
+   * The running totals as of the last window emitted.  See {@link #withSnapshots()}.
+   *
+   * @return The latest snapshot or null if snapshots aren't enabled.
+   */
+  public CountSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * The number of tuples that were dropped in event-time mode because they arrived after their
+   * window had been emitted.
+   */
+  public int getLateEvents() {
+    return lateEvents.get();
+  }
+
+  /**
+   * How output tuples are anchored to the input tuples that were counted.
+   */
+  public enum Anchoring {
+    /**
+     * Each output is anchored to the inputs with the same pair, or the same key for sketches and
+     * distinct counts.  Every input anchors at most one output so the acker sees one anchor per
+     * input.  If an output fails, only the inputs that went into it are replayed.
+     */
+    PAIR,
+
+    /**
+     * Every output is anchored to every input in the window.  A failure anywhere replays the whole
+     * window, but the acker has to track keys times inputs anchors.
+     */
+    WINDOW,
+
+    /**
+     * Outputs are not anchored and inputs are acknowledged once the window has been emitted.  The
+     * acker sees only the acknowledgements, but an output that is lost downstream is not replayed.
+     */
+    NONE
+  }
+
+  /**
+   * Works out which input tuples anchor each output tuple.  In {@link Anchoring#PAIR} mode the
+   * inputs are grouped once per window so that finding the anchors for an output is a lookup.
+   */
+  private class Anchors {
+    private final Collection<Tuple> tuples;
+    private final Map<String, Map<String, List<Tuple>>> byPair = Maps.newHashMap();
+    private final Map<String, List<Tuple>> byKey = Maps.newHashMap();
+
+    private Anchors(Collection<Tuple> tuples, boolean keyOnly) {
+      this.tuples = tuples;
+      if (anchoring == Anchoring.PAIR) {
+        for (Tuple tuple : tuples) {
+          String key = tuple.getString(0);
+          List<Tuple> group;
+          if (keyOnly) {
+            group = byKey.get(key);
+            if (group == null) {
+              group = Lists.newArrayList();
+              byKey.put(key, group);
+            }
+          } else {
+            Map<String, List<Tuple>> values = byPair.get(key);
+            if (values == null) {
+              values = Maps.newHashMap();
+              byPair.put(key, values);
+            }
+            String value = tuple.getString(1);
+            group = values.get(value);
+            if (group == null) {
+              group = Lists.newArrayList();
+              values.put(value, group);
+            }
+          }
+          group.add(tuple);
+        }
+      }
+    }
+
+    public Collection<Tuple> forPair(String key, String value) {
+      switch (anchoring) {
+        case PAIR:
+          Map<String, List<Tuple>> values = byPair.get(key);
+          return nonNull(values == null ? null : values.get(value));
+        case WINDOW:
+          return tuples;
+        default:
+          return Collections.emptyList();
+      }
+    }
+
+    public Collection<Tuple> forKey(String key) {
+      switch (anchoring) {
+        case PAIR:
+          return nonNull(byKey.get(key));
+        case WINDOW:
+          return tuples;
+        default:
+          return Collections.emptyList();
+      }
+    }
+
+    public void ackAll() {
+      for (Tuple tuple : tuples) {
+        outputCollector.ack(tuple);
+      }
+    }
+
+    private Collection<Tuple> nonNull(List<Tuple> group) {
+      return group == null ? Collections.<Tuple>emptyList() : group;
+    }
+  }
+
+  /**
+   * Counts for a single window in count-on-arrival mode.  The tuples are kept only as handles
+   * for anchoring and acknowledgement.  Events that have already been acknowledged, or that were
+   * recovered from the log, are counted without keeping a tuple.
+   * <p/>
+   * In top-k, sketch and distinct count modes, counts go into fixed size summaries instead of the
+   * exact table.
+   */
+  private class Window implements Serializable {
+    private final PairCountTable<String, String> counts = new PairCountTable<String, String>();
+    private final SpaceSaving<String, String> heavy = topK > 0 ? new SpaceSaving<String, String>(topKCapacity) : null;
+    private final Map<String, CountMinSketch> sketches = sketchEpsilon > 0 ? Maps.<String, CountMinSketch>newHashMap() : null;
+    private final Map<String, HyperLogLog> distinct = distinctPrecision > 0 ? Maps.<String, HyperLogLog>newHashMap() : null;
+    private final List<Tuple> tuples = Lists.newArrayList();
+    private int events = 0;
+    private long total = 0;
+
+    // the estimated bytes in counts and the runs it has been spilled to, if any
+    private long countBytes = 0;
+    private SpilledCounts spilled = null;
+
+    // estimated bytes held for this window.  Written only by the thread that updates the window.
+    // A top-k summary is charged for all of its counters up front
+    private volatile long bytes = heavy != null ? (long) topKCapacity * (PAIR_BYTES + 2 * STRING_BYTES) : 0;
+
+    // execute counts itself in while it updates the window and a flush waits for it to leave
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile boolean sealed = false;
+
+    /**
+     * Starts an update.  Returns false if a flush has taken over this window.
+     */
+    public boolean enter() {
+      writers.incrementAndGet();
+      if (sealed) {
+        writers.decrementAndGet();
+        return false;
+      }
+      return true;
+    }
+
+    public void exit() {
+      writers.decrementAndGet();
+    }
+
+    /**
+     * Stops new updates and waits for an update in progress to finish.  Updates only take a few
+     * microseconds so spinning is fine.
+     */
+    public void seal() {
+      sealed = true;
+      while (writers.get() > 0) {
+        Thread.yield();
+      }
+    }
+
+    public void unseal() {
+      sealed = false;
+    }
+
+    public void add(Tuple tuple) {
+      count(tuple);
+      tuples.add(tuple);
+      bytes += tupleBytes(tuple);
+    }
+
+    /**
+     * Accounts for a tuple that is buffered elsewhere until the window is recorded.
+     */
+    public void buffer(Tuple tuple) {
+      bytes += tupleBytes(tuple);
+    }
+
+    public void count(Tuple tuple) {
+      long n = partialCounts ? ((Number) tuple.getValue(2)).longValue() : 1;
+      count(tuple.getString(0), tuple.getString(1), n);
+    }
+
+    public void count(String key, String value) {
+      count(key, value, 1);
+    }
+
+    public void count(String key, String value, long n) {
+      if (heavy != null) {
+        heavy.add(key, value, n);
+      } else if (sketches != null) {
+        CountMinSketch sketch = sketches.get(key);
+        if (sketch == null) {
+          sketch = CountMinSketch.forError(sketchEpsilon, sketchDelta);
+          sketches.put(key, sketch);
+          bytes += 8L * sketch.getDepth() * sketch.getWidth() + stringBytes(key);
+        }
+        sketch.add(value, n);
+      } else if (distinct != null) {
+        HyperLogLog hll = distinct.get(key);
+        if (hll == null) {
+          hll = new HyperLogLog(distinctPrecision);
+          distinct.put(key, hll);
+          // charged as if dense since it can become dense at any time
+          bytes += (1L << distinctPrecision) + stringBytes(key);
+        }
+        hll.add(value);
+      } else if (counts.add(key, value, n) == n) {
+        // a new pair
+        long pairBytes = PAIR_BYTES + stringBytes(key) + stringBytes(value);
+        bytes += pairBytes;
+        countBytes += pairBytes;
+        if (spillDirectory != null && countBytes > maxCountBytes) {
+          spill();
+        }
+      }
+      events++;
+      total += n;
+    }
+
+    private void spill() {
+      if (spilled == null) {
+        spilled = new SpilledCounts(spillDirectory);
+      }
+      try {
+        spilled.spill(counts);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not spill counts to " + spillDirectory, e);
+      }
+      counts.clear();
+      bytes -= countBytes;
+      countBytes = 0;
+    }
+
+    public int size() {
+      return events;
+    }
+  }
 }
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Batches appends to a {@link RecoveryLog} so that the log is forced to disk once per batch rather
+ * than once per event.  Each append carries a token, typically the tuple that caused it, and the
+ * tokens for a batch are handed to a listener together once the batch is safely on disk.
+ * <p/>
+ * Appends are written to the log immediately by the calling thread.  A background thread forces
+ * the log once the oldest waiting append is commitInterval ms old or once commitBytes bytes are
+ * waiting.  Appends continue while a force is in progress and go into the next batch.
+ * <p/>
+ * Each force also commits the end of its batch with {@link RecoveryLog#commit}.  Events appended
+ * after that were never passed to the listener, so replay leaves them out rather than counting
+ * them a second time when the spout replays them.
+ * <p/>
+ * The log itself is only ever appended to by the thread that calls {@link #append}.
+ */
+public class GroupCommitLog<T> implements Closeable {
+  private static final transient Logger logger = Logger.getLogger(GroupCommitLog.class);
+
+  private final RecoveryLog log;
+  private final long commitInterval;
+  private final int commitBytes;
+  private final Listener<T> listener;
+
+  private final Object lock = new Object();
+  private final Thread committer;
+
+  // guarded by lock
+  private List<T> batch = Lists.newArrayList();
+  private RecoveryLog.Position batchEnd;
+  private int batchBytes = 0;
+  private long batchStart = 0;
+  private boolean closed = false;
+  private boolean forcing = false;
+  private IOException failure = null;
+
+  /**
+   * @param log            The log to append to.
+   * @param commitInterval The longest time in ms that an append waits before the log is forced.
+   * @param commitBytes    The log is forced as soon as this many bytes are waiting.
+   * @param listener       Is told about each batch once it is on disk.  Called from the commit
+   *                       thread or from a thread calling {@link #commit()}.
+   * @throws IOException If the starting position of the log can't be committed.
+   */
+  public GroupCommitLog(RecoveryLog log, long commitInterval, int commitBytes, Listener<T> listener) throws IOException {
+    this.log = log;
+    this.commitInterval = commitInterval;
+    this.commitBytes = commitBytes;
+    this.listener = listener;
+
+    // nothing appended from here on counts until it has been committed
+    batchEnd = log.position();
+    log.commit(batchEnd);
+
+    committer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        commitLoop();
+      }
+    }, "group-commit");
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  /**
+   * Writes an event to the log.  The token is passed to the listener once the event has been
+   * forced to disk.
+   *
+   * @throws IOException           If the event could not be written.  The token will never be
+   *                               passed to the listener.
+   * @throws IllegalStateException If an earlier batch could not be forced to disk.
+   */
+  public void append(String key, String value, T token) throws IOException {
+    checkFailure();
+    int bytes = log.append(key, value);
+    RecoveryLog.Position end = log.position();
+    synchronized (lock) {
+      if (batch.isEmpty()) {
+        batchStart = System.currentTimeMillis();
+      }
+      batch.add(token);
+      batchEnd = end;
+      batchBytes += bytes;
+      // the commit thread starts timing a batch when it sees the first append
+      if (batch.size() == 1 || batchBytes >= commitBytes) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Forces everything appended so far to disk in the calling thread.  All waiting tokens,
+   * including those in a batch that the commit thread was forcing, have been passed to the
+   * listener by the time this returns.
+   */
+  public void commit() {
+    List<T> tokens;
+    RecoveryLog.Position end;
+    synchronized (lock) {
+      while (forcing) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      end = batchEnd;
+      tokens = takeBatch();
+    }
+    force(tokens, end);
+    checkFailure();
+  }
+
+  /**
+   * Position of the end of the log.  Only meaningful on the thread that appends.
+   */
+  public RecoveryLog.Position position() {
+    return log.position();
+  }
+
+  /**
+   * Commits anything that is waiting and stops the commit thread.  The underlying log is not
+   * closed.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    try {
+      committer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    commit();
+  }
+
+  private void commitLoop() {
+    while (true) {
+      List<T> tokens;
+      RecoveryLog.Position end;
+      synchronized (lock) {
+        try {
+          while (!closed && (forcing || !due())) {
+            if (forcing || batch.isEmpty()) {
+              lock.wait();
+            } else {
+              lock.wait(Math.max(1, batchStart + commitInterval - System.currentTimeMillis()));
+            }
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (closed) {
+          return;
+        }
+        end = batchEnd;
+        tokens = takeBatch();
+      }
+      if (!force(tokens, end)) {
+        return;
+      }
+    }
+  }
+
+  // must hold lock
+  private boolean due() {
+    return !batch.isEmpty() && (batchBytes >= commitBytes || System.currentTimeMillis() - batchStart >= commitInterval);
+  }
+
+  // must hold lock.  Only one batch is forced at a time
+  private List<T> takeBatch() {
+    List<T> r = batch;
+    batch = Lists.newArrayList();
+    batchBytes = 0;
+    forcing = true;
+    return r;
+  }
+
+  private boolean force(List<T> tokens, RecoveryLog.Position end) {
+    boolean ok = true;
+    try {
+      if (!tokens.isEmpty()) {
+        log.commit(end);
+        listener.committed(tokens);
+      }
+    } catch (IOException e) {
+      logger.error("Could not force recovery log to disk", e);
+      ok = false;
+      synchronized (lock) {
+        failure = e;
+      }
+    } finally {
+      synchronized (lock) {
+        forcing = false;
+        lock.notifyAll();
+      }
+    }
+    return ok;
+  }
+
+  private void checkFailure() {
+    synchronized (lock) {
+      if (failure != null) {
+        throw new IllegalStateException("Could not force recovery log to disk", failure);
+      }
+    }
+  }
+
+  /**
+   * Receives the tokens for each batch once that batch is on disk.
+   */
+  public interface Listener<T> {
+    void committed(List<T> tokens);
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct strings in a stream using a HyperLogLog sketch with 2^p
+ * registers.  The relative error of the estimate is about 1.04 / sqrt(2^p), so p = 12 gives
+ * about 1.6% with 4KB of registers.
+ * <p/>
+ * Most keys only ever see a few distinct values so a sketch starts out sparse and keeps only the
+ * registers that have been set in a small hash table.  Once the sparse table would take more
+ * memory than the full set of registers, the sketch switches to the dense form.
+ * <p/>
+ * Two sketches with the same precision can be merged into a sketch of the union of their streams.
+ * The byte form from {@link #toBytes()} stores a sparse sketch as delta coded register numbers so
+ * a sketch for a key with few values takes only a few bytes.
+ */
+public class HyperLogLog implements Serializable {
+  private static final byte SPARSE = 1;
+  private static final byte DENSE = 2;
+
+  private final int p;
+  private final int m;
+
+  // exactly one of these is non-null.  Sparse entries are (register << 8 | value) with 0 for empty
+  private int[] sparse;
+  private int sparseSize = 0;
+  private byte[] dense;
+
+  public HyperLogLog(int p) {
+    if (p < 4 || p > 18) {
+      throw new IllegalArgumentException("Precision must be between 4 and 18");
+    }
+    this.p = p;
+    this.m = 1 << p;
+    this.sparse = new int[16];
+  }
+
+  public void add(String item) {
+    long h = CountMinSketch.hash(item);
+    int register = (int) (h >>> (64 - p));
+    // the remaining bits are padded with a one so that the run of zeros can't be too long
+    int rank = Long.numberOfLeadingZeros((h << p) | (1L << (p - 1))) + 1;
+    set(register, rank);
+  }
+
+  /**
+   * Merges other into this sketch so that this sketch estimates the size of the union.
+   */
+  public void merge(HyperLogLog other) {
+    if (other.p != p) {
+      throw new IllegalArgumentException(String.format("Can't merge precision %d sketch into precision %d sketch", other.p, p));
+    }
+    if (other.dense != null) {
+      for (int i = 0; i < m; i++) {
+        if (other.dense[i] != 0) {
+          set(i, other.dense[i]);
+        }
+      }
+    } else {
+      for (int entry : other.sparse) {
+        if (entry != 0) {
+          set(entry >>> 8, entry & 0xff);
+        }
+      }
+    }
+  }
+
+  /**
+   * Estimates the number of distinct strings added.
+   */
+  public long cardinality() {
+    double sum = 0;
+    int zeros = 0;
+    if (dense != null) {
+      for (byte r : dense) {
+        sum += 1.0 / (1L << r);
+        if (r == 0) {
+          zeros++;
+        }
+      }
+    } else {
+      zeros = m - sparseSize;
+      sum = zeros;
+      for (int entry : sparse) {
+        if (entry != 0) {
+          sum += 1.0 / (1L << (entry & 0xff));
+        }
+      }
+    }
+
+    double estimate = alpha() * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is much better while many registers are still empty
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  public boolean isSparse() {
+    return dense == null;
+  }
+
+  public int getPrecision() {
+    return p;
+  }
+
+  /**
+   * Serializes this sketch.  Sparse sketches are written as a count followed by the set
+   * registers in order, each as a variable length gap from the previous register and a value.
+   * Dense sketches are written as one byte per register.
+   */
+  public byte[] toBytes() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(p);
+    if (dense != null) {
+      out.write(DENSE);
+      out.write(dense, 0, m);
+    } else {
+      out.write(SPARSE);
+      int[] entries = new int[sparseSize];
+      int n = 0;
+      for (int entry : sparse) {
+        if (entry != 0) {
+          entries[n++] = entry;
+        }
+      }
+      Arrays.sort(entries);
+      writeVarInt(out, n);
+      int previous = 0;
+      for (int entry : entries) {
+        writeVarInt(out, (entry >>> 8) - previous);
+        out.write(entry & 0xff);
+        previous = entry >>> 8;
+      }
+    }
+    return out.toByteArray();
+  }
+
+  public static HyperLogLog fromBytes(byte[] bytes) {
+    HyperLogLog r = new HyperLogLog(bytes[0]);
+    int[] offset = {2};
+    if (bytes[1] == DENSE) {
+      r.toDense();
+      System.arraycopy(bytes, 2, r.dense, 0, r.m);
+    } else if (bytes[1] == SPARSE) {
+      int n = readVarInt(bytes, offset);
+      int register = 0;
+      for (int i = 0; i < n; i++) {
+        register += readVarInt(bytes, offset);
+        r.set(register, bytes[offset[0]++]);
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown sketch format " + bytes[1]);
+    }
+    return r;
+  }
+
+  private void set(int register, int rank) {
+    if (dense != null) {
+      if (rank > dense[register]) {
+        dense[register] = (byte) rank;
+      }
+      return;
+    }
+
+    int mask = sparse.length - 1;
+    int i = Hashing.mix(register) & mask;
+    while (sparse[i] != 0 && (sparse[i] >>> 8) != register) {
+      i = (i + 1) & mask;
+    }
+    if (sparse[i] == 0) {
+      // a sparse entry takes up to 8 bytes at 50% load so beyond m / 8 entries dense is smaller
+      if (sparseSize >= m / 8) {
+        toDense();
+        set(register, rank);
+        return;
+      }
+      if (2 * (sparseSize + 1) > sparse.length) {
+        growSparse();
+        set(register, rank);
+        return;
+      }
+      sparseSize++;
+      sparse[i] = register << 8 | rank;
+    } else if (rank > (sparse[i] & 0xff)) {
+      sparse[i] = register << 8 | rank;
+    }
+  }
+
+  private void growSparse() {
+    int[] old = sparse;
+    sparse = new int[old.length * 2];
+    sparseSize = 0;
+    for (int entry : old) {
+      if (entry != 0) {
+        set(entry >>> 8, entry & 0xff);
+      }
+    }
+  }
+
+  private void toDense() {
+    dense = new byte[m];
+    if (sparse != null) {
+      for (int entry : sparse) {
+        if (entry != 0) {
+          dense[entry >>> 8] = (byte) (entry & 0xff);
+        }
+      }
+    }
+    sparse = null;
+    sparseSize = 0;
+  }
+
+  private double alpha() {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int v) {
+    while ((v & ~0x7f) != 0) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static int readVarInt(byte[] bytes, int[] offset) {
+    int r = 0;
+    int shift = 0;
+    while (true) {
+      byte b = bytes[offset[0]++];
+      r |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return r;
+      }
+      shift += 7;
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pending side of a time limited join, split into shards by key.  This is the engine behind
+ * {@link TimeLimitedJoin} and can be used on its own with any kind of key and value.
+ * <p/>
+ * Each value waits for a value with an equal key until it is matched or expires.  Each shard has
+ * its own map, its own {@link TimingWheel} and its own share of the retention limit, and is only
+ * ever locked by a thread working on a key that hashes to it.  Threads working on different
+ * shards never wait for each other, so the join can use as many cores as there are shards.  The
+ * listener is called while the shard is locked so it should be quick, and it has to be safe to
+ * call from several threads if several threads use the join.
+ * <p/>
+ * Normally a value is removed as soon as it is matched so each value joins at most once.  With
+ * maxPerKey set, each key keeps a list of up to that many values instead.  A new value is
+ * matched against every value in the list and is then added to the list itself, so every pair
+ * of values with equal keys that arrive within the expiration time of each other is joined.
+ * Values stay until they expire or are pushed out of a full list by a newer one.
+ * <p/>
+ * Values can also be offered as coming from the {@link #LEFT} or {@link #RIGHT} side of the
+ * join.  Each side has its own index and a value is only matched against the other side, so two
+ * values from the same side never join and a probe only looks at the values that could match.
+ * Without a limit per key, a value pushes out a value from its own side that has the same key.
+ */
+public class JoinState<K, V> {
+  public static final int LEFT = 0;
+  public static final int RIGHT = 1;
+
+  private final Shard[] shards;
+  private final int mask;
+  private final int maxPerKey;
+
+  /**
+   * @param shards            How many shards to split the keys over.  Rounded up to a power of 2.
+   * @param expirationTime    How long in ms a value waits for a match.
+   * @param maxValuesToRetain The most values to hold at once over all shards.
+   */
+  public JoinState(int shards, long expirationTime, int maxValuesToRetain) {
+    this(shards, expirationTime, maxValuesToRetain, 0);
+  }
+
+  /**
+   * @param shards            How many shards to split the keys over.  Rounded up to a power of 2.
+   * @param expirationTime    How long in ms a value waits for a match.
+   * @param maxValuesToRetain The most values to hold at once over all shards.
+   * @param maxPerKey         The most values to hold for one key, or 0 to join each value once.
+   */
+  @SuppressWarnings("unchecked")
+  public JoinState(int shards, long expirationTime, int maxValuesToRetain, int maxPerKey) {
+    if (shards < 1 || shards > 1 << 16 || expirationTime < 0 || maxValuesToRetain < 0 || maxPerKey < 0) {
+      throw new IllegalArgumentException("Need 1 to 65536 shards and a non-negative expiration time and limits");
+    }
+    this.maxPerKey = maxPerKey;
+    int n = Integer.highestOneBit(shards);
+    if (n < shards) {
+      n *= 2;
+    }
+    mask = n - 1;
+    this.shards = (Shard[]) new JoinState.Shard[n];
+    int perShard = (maxValuesToRetain + n - 1) / n;
+    for (int i = 0; i < n; i++) {
+      this.shards[i] = new Shard(expirationTime, perShard);
+    }
+  }
+
+  /**
+   * Looks for a pending value with the same key.  If there is one, it is removed and the listener
+   * hears about the match.  If not, the value waits for a match.  With a limit per key, the
+   * listener hears about a match with each value in the key's list and the new value joins the
+   * list.  Values that have expired in the key's shard are dropped first so that a value can't
+   * match something that should already be gone.
+   */
+  public void offer(K key, V value, long now, Listener<K, V> listener) {
+    shards[shard(key)].offer(key, LEFT, LEFT, value, now, listener);
+  }
+
+  /**
+   * Like {@link #offer(Object, Object, long, Listener)} but the value only matches values that
+   * were offered from the other side and only waits for values from the other side.  The
+   * listener always gets the left value first.
+   *
+   * @param side {@link #LEFT} or {@link #RIGHT}.
+   */
+  public void offer(K key, int side, V value, long now, Listener<K, V> listener) {
+    if (side != LEFT && side != RIGHT) {
+      throw new IllegalArgumentException("Side must be LEFT or RIGHT, not " + side);
+    }
+    shards[shard(key)].offer(key, side, 1 - side, value, now, listener);
+  }
+
+  /**
+   * Drops expired values from every shard.  Shards with nothing due are skipped without taking
+   * their locks, so this is cheap enough to call for every value.
+   */
+  public void expire(long now, Listener<K, V> listener) {
+    for (Shard shard : shards) {
+      if (now >= shard.due) {
+        shard.expire(now, listener);
+      }
+    }
+  }
+
+  /**
+   * The number of values waiting for a match.  Only exact when no other thread is using the join.
+   */
+  public int size() {
+    int r = 0;
+    for (Shard shard : shards) {
+      r += shard.size;
+    }
+    return r;
+  }
+
+  public int getShards() {
+    return shards.length;
+  }
+
+  private int shard(K key) {
+    return Hashing.mix(key.hashCode()) & mask;
+  }
+
+  public interface Listener<K, V> {
+    /**
+     * Called when a value arrives that matches one that was waiting.  The value that was waiting
+     * comes first, unless the values have sides, in which case the left value comes first.
+     */
+    void matched(K key, V first, V second);
+
+    /**
+     * Called when a value is dropped because it expired or to stay under a limit.  With a limit
+     * per key, every value is dropped this way in the end, whether it matched or not.
+     */
+    void expired(K key, V value);
+  }
+
+  private class Shard {
+    private final long expirationTime;
+    private final int maxValuesToRetain;
+    private final TimingWheel<Pending<K, V>> wheel;
+    // one index per side.  Values without a side all go on the left
+    private final List<Map<K, TimingWheel<Pending<K, V>>.Timeout>> pending = Lists.newArrayList();
+    // used instead of pending when there is a limit per key.  Oldest first
+    private final List<Map<K, ArrayDeque<TimingWheel<Pending<K, V>>.Timeout>>> lists = Lists.newArrayList();
+
+    // read without the lock so that idle shards can be skipped
+    private volatile long due = Long.MAX_VALUE;
+    private volatile int size = 0;
+
+    private Shard(long expirationTime, int maxValuesToRetain) {
+      this.expirationTime = expirationTime;
+      this.maxValuesToRetain = maxValuesToRetain;
+      this.wheel = new TimingWheel<Pending<K, V>>(Math.max(1, expirationTime / 64), expirationTime);
+      for (int side = LEFT; side <= RIGHT; side++) {
+        pending.add(Maps.<K, TimingWheel<Pending<K, V>>.Timeout>newHashMap());
+        lists.add(Maps.<K, ArrayDeque<TimingWheel<Pending<K, V>>.Timeout>>newHashMap());
+      }
+    }
+
+    /**
+     * Matches value against the index for the probe side and then leaves it in the index for its
+     * own side.  Both are the same side when values have no sides.
+     */
+    private synchronized void offer(K key, int side, int probe, V value, long now, Listener<K, V> listener) {
+      advance(now, listener);
+      while (wheel.size() > maxValuesToRetain) {
+        discard(wheel.removeEarliest(), listener);
+      }
+
+      if (maxPerKey > 0) {
+        offerToList(key, side, probe, value, now, listener);
+      } else {
+        TimingWheel<Pending<K, V>>.Timeout match = pending.get(probe).remove(key);
+        if (match != null) {
+          match.cancel();
+          matched(key, side, probe, match.getItem().value, value, listener);
+        } else {
+          TimingWheel<Pending<K, V>>.Timeout old = pending.get(side).put(key, wheel.add(new Pending<K, V>(key, side, value), now + expirationTime));
+          if (old != null) {
+            // only possible with sides.  The newer value takes over like in a list of one
+            old.cancel();
+            listener.expired(key, old.getItem().value);
+          }
+        }
+      }
+      update();
+    }
+
+    private void offerToList(K key, int side, int probe, V value, long now, Listener<K, V> listener) {
+      ArrayDeque<TimingWheel<Pending<K, V>>.Timeout> matches = lists.get(probe).get(key);
+      if (matches != null) {
+        for (TimingWheel<Pending<K, V>>.Timeout match : matches) {
+          matched(key, side, probe, match.getItem().value, value, listener);
+        }
+      }
+      ArrayDeque<TimingWheel<Pending<K, V>>.Timeout> list = lists.get(side).get(key);
+      if (list == null) {
+        list = new ArrayDeque<TimingWheel<Pending<K, V>>.Timeout>();
+        lists.get(side).put(key, list);
+      }
+      if (list.size() >= maxPerKey) {
+        TimingWheel<Pending<K, V>>.Timeout oldest = list.pollFirst();
+        oldest.cancel();
+        listener.expired(key, oldest.getItem().value);
+      }
+      list.addLast(wheel.add(new Pending<K, V>(key, side, value), now + expirationTime));
+    }
+
+    private void matched(K key, int side, int probe, V pending, V value, Listener<K, V> listener) {
+      // a new left value goes before the right value it matched
+      if (side == probe || side == RIGHT) {
+        listener.matched(key, pending, value);
+      } else {
+        listener.matched(key, value, pending);
+      }
+    }
+
+    private synchronized void expire(long now, Listener<K, V> listener) {
+      advance(now, listener);
+      update();
+    }
+
+    private void advance(long now, final Listener<K, V> listener) {
+      if (now >= wheel.nextAdvance()) {
+        wheel.advance(now, new TimingWheel.Listener<Pending<K, V>>() {
+          @Override
+          public void expired(Pending<K, V> item) {
+            discard(item, listener);
+          }
+        });
+      }
+    }
+
+    private void discard(Pending<K, V> item, Listener<K, V> listener) {
+      if (maxPerKey > 0) {
+        Map<K, ArrayDeque<TimingWheel<Pending<K, V>>.Timeout>> index = lists.get(item.side);
+        ArrayDeque<TimingWheel<Pending<K, V>>.Timeout> list = index.get(item.key);
+        // values expire in the order they arrived so this is nearly always the first in the list
+        Iterator<TimingWheel<Pending<K, V>>.Timeout> i = list.iterator();
+        while (i.hasNext()) {
+          if (i.next().getItem() == item) {
+            i.remove();
+            break;
+          }
+        }
+        if (list.isEmpty()) {
+          index.remove(item.key);
+        }
+      } else {
+        pending.get(item.side).remove(item.key);
+      }
+      listener.expired(item.key, item.value);
+    }
+
+    private void update() {
+      size = wheel.size();
+      due = size == 0 ? Long.MAX_VALUE : wheel.nextAdvance();
+    }
+  }
+
+  private static class Pending<K, V> {
+    private final K key;
+    private final int side;
+    private final V value;
+
+    private Pending(K key, int side, V value) {
+      this.key = key;
+      this.side = side;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * Counts (key, value) pairs without ever building a composite key object.  This is the same open
+ * addressing table as {@link CountTable} except that each slot holds both halves of the pair and
+ * the combined hash of the pair.  Lookups compare the stored hash first and then the two halves
+ * field by field.
+ * <p/>
+ * A pair whose count drops to zero is removed from the table so that tables which are both added
+ * to and subtracted from don't fill up with dead pairs.
+ */
+public class PairCountTable<A, B> implements Serializable {
+  private static final int MIN_CAPACITY = 16;
+  private static final double MAX_LOAD = 0.6;
+
+  private Object[] firsts;
+  private Object[] seconds;
+  private int[] hashes;
+  private long[] counts;
+  private int size = 0;
+  private long total = 0;
+  private int resizeThreshold;
+
+  public PairCountTable() {
+    this(MIN_CAPACITY);
+  }
+
+  public PairCountTable(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  /**
+   * Adds delta to the count for the pair (first, second).  The pair is removed if the count
+   * becomes zero.
+   *
+   * @return The new count for the pair.
+   */
+  public long add(A first, B second, long delta) {
+    if (delta == 0) {
+      return get(first, second);
+    }
+    total += delta;
+
+    int hash = hash(first, second);
+    int i = slot(first, second, hash);
+    if (firsts[i] == null) {
+      if (size >= resizeThreshold) {
+        resize(firsts.length * 2);
+        i = slot(first, second, hash);
+      }
+      firsts[i] = first;
+      seconds[i] = second;
+      hashes[i] = hash;
+      size++;
+    }
+    long r = counts[i] += delta;
+    if (r == 0) {
+      delete(i);
+    }
+    return r;
+  }
+
+  /**
+   * Adds all of the counts in other to this table.
+   */
+  public void addAll(PairCountTable<A, B> other) {
+    addAll(other, 1);
+  }
+
+  /**
+   * Subtracts all of the counts in other from this table.
+   */
+  public void subtractAll(PairCountTable<A, B> other) {
+    addAll(other, -1);
+  }
+
+  private void addAll(PairCountTable<A, B> other, int sign) {
+    Cursor<A, B> cursor = other.cursor();
+    while (cursor.next()) {
+      add(cursor.first(), cursor.second(), sign * cursor.count());
+    }
+  }
+
+  public long increment(A first, B second) {
+    return add(first, second, 1);
+  }
+
+  public long get(A first, B second) {
+    int i = slot(first, second, hash(first, second));
+    return firsts[i] == null ? 0 : counts[i];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The sum of all counts in the table.
+   */
+  public long total() {
+    return total;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    allocate(MIN_CAPACITY);
+    size = 0;
+    total = 0;
+  }
+
+  public Cursor<A, B> cursor() {
+    return new Cursor<A, B>(this);
+  }
+
+  private int slot(Object first, Object second, int hash) {
+    int mask = firsts.length - 1;
+    int i = hash & mask;
+    while (firsts[i] != null && !(hashes[i] == hash && firsts[i].equals(first) && seconds[i].equals(second))) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * Empties slot i and then shifts later members of the same probe run back so that lookups
+   * never stop early at the hole.
+   */
+  private void delete(int i) {
+    int mask = firsts.length - 1;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (firsts[j] == null) {
+        break;
+      }
+      // an entry can fill the hole at i if its home slot is not in the cyclic range (i, j]
+      int home = hashes[j] & mask;
+      boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+      if (!stays) {
+        firsts[i] = firsts[j];
+        seconds[i] = seconds[j];
+        hashes[i] = hashes[j];
+        counts[i] = counts[j];
+        i = j;
+      }
+    }
+    firsts[i] = null;
+    seconds[i] = null;
+    counts[i] = 0;
+    size--;
+  }
+
+  private void resize(int capacity) {
+    Object[] oldFirsts = firsts;
+    Object[] oldSeconds = seconds;
+    int[] oldHashes = hashes;
+    long[] oldCounts = counts;
+    allocate(capacity);
+
+    int mask = capacity - 1;
+    for (int i = 0; i < oldFirsts.length; i++) {
+      if (oldFirsts[i] != null) {
+        // the stored hash means that we never have to call hashCode again
+        int j = oldHashes[i] & mask;
+        while (firsts[j] != null) {
+          j = (j + 1) & mask;
+        }
+        firsts[j] = oldFirsts[i];
+        seconds[j] = oldSeconds[i];
+        hashes[j] = oldHashes[i];
+        counts[j] = oldCounts[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    firsts = new Object[capacity];
+    seconds = new Object[capacity];
+    hashes = new int[capacity];
+    counts = new long[capacity];
+    resizeThreshold = (int) (capacity * MAX_LOAD);
+  }
+
+  private static int capacityFor(int n) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * MAX_LOAD < n) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  /**
+   * Order sensitive hash of a pair so that (a, b) and (b, a) land in different places.
+   */
+  static int hash(Object first, Object second) {
+    return Hashing.mix(31 * first.hashCode() + second.hashCode());
+  }
+
+  /**
+   * Steps through the pairs in a table without allocating anything per pair.
+   */
+  public static class Cursor<A, B> {
+    private final PairCountTable<A, B> table;
+    private int index = -1;
+
+    private Cursor(PairCountTable<A, B> table) {
+      this.table = table;
+    }
+
+    public boolean next() {
+      Object[] firsts = table.firsts;
+      index++;
+      while (index < firsts.length && firsts[index] == null) {
+        index++;
+      }
+      return index < firsts.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public A first() {
+      check();
+      return (A) table.firsts[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public B second() {
+      check();
+      return (B) table.seconds[index];
+    }
+
+    public long count() {
+      check();
+      return table.counts[index];
+    }
+
+    private void check() {
+      if (index < 0 || index >= table.firsts.length) {
+        throw new NoSuchElementException();
+      }
+    }
+  }
+}
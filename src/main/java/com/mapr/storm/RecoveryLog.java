@@ -0,0 +1,422 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of (key, value) events split into numbered segments.  Segment files are
+ * named so that reading them in lexical order reads them in the order they were written.  A new
+ * segment is started whenever the current one passes the segment size limit and every time a log
+ * is opened, so we never append to a segment whose tail might have been torn by a crash.
+ * <p/>
+ * Each record is a length, a CRC32 of the payload and the payload itself.  The payload is the
+ * UTF-8 bytes of the key and the value, each preceded by its length.  Replay stops reading a
+ * segment at the first record that is truncated or fails its checksum.
+ * <p/>
+ * Replay memory maps each segment rather than reading it through a stream.
+ * <p/>
+ * A log whose appends are only acknowledged once they are forced records the end of each forced
+ * batch with {@link #commit(Position)}.  Replay then stops at the last committed position, since
+ * anything after it was never acknowledged and will be replayed by the spout instead.  Opening the
+ * log cuts away everything after that position.  A log that never commits is replayed to its end.
+ * <p/>
+ * Appends must all come from one thread, but {@link #sync()} may be called from another thread
+ * while appends continue.
+ */
+public class RecoveryLog implements Closeable {
+  private static final transient Logger logger = Logger.getLogger(RecoveryLog.class);
+
+  private static final String SUFFIX = ".log";
+  private static final String COMMITTED = "committed";
+  private static final String COMMITTED_TEMP = "committed.tmp";
+  private static final int HEADER_SIZE = 8;
+
+  private final File directory;
+  private final long segmentSize;
+
+  private final CRC32 crc = new CRC32();
+  private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+  private long segment;
+  private long offset;
+  private RandomAccessFile file;
+  private volatile FileChannel channel;
+
+  // keeps a sync from racing with closing a segment when we roll to the next one
+  private final Object syncLock = new Object();
+
+  /**
+   * Opens a log in the given directory.  Appends go to a new segment numbered after any segments
+   * that already exist.  Anything after the last committed position is deleted first.
+   *
+   * @param directory   Where segments live.  Created if necessary.
+   * @param segmentSize How many bytes to write to a segment before starting a new one.
+   */
+  public RecoveryLog(File directory, long segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create recovery log directory " + directory);
+    }
+
+    truncateUncommitted(directory);
+    List<Long> existing = segments(directory);
+    segment = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+    roll();
+  }
+
+  /**
+   * Appends a single event to the log.  The bytes have been handed to the operating system by
+   * the time this returns, but have not necessarily been forced to disk.
+   *
+   * @return The number of bytes written to the log.
+   */
+  public int append(String key, String value) throws IOException {
+    byte[] k = key.getBytes(Charsets.UTF_8);
+    byte[] v = value.getBytes(Charsets.UTF_8);
+    int payload = 8 + k.length + v.length;
+
+    if (offset > 0 && offset + HEADER_SIZE + payload > segmentSize) {
+      roll();
+    }
+
+    if (buffer.capacity() < HEADER_SIZE + payload) {
+      buffer = ByteBuffer.allocate(2 * (HEADER_SIZE + payload));
+    }
+    buffer.clear();
+    buffer.position(HEADER_SIZE);
+    buffer.putInt(k.length).put(k).putInt(v.length).put(v);
+
+    crc.reset();
+    crc.update(buffer.array(), HEADER_SIZE, payload);
+    buffer.putInt(0, payload);
+    buffer.putInt(4, (int) crc.getValue());
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    offset += HEADER_SIZE + payload;
+    return HEADER_SIZE + payload;
+  }
+
+  /**
+   * Forces everything appended so far to disk.
+   */
+  public void sync() throws IOException {
+    synchronized (syncLock) {
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Forces everything appended so far to disk and then records position as committed.  Replay
+   * stops at the last committed position.  Like sync, this may be called from another thread
+   * while appends continue, as long as position was taken on the appending thread.
+   */
+  public void commit(Position position) throws IOException {
+    sync();
+    File tmp = new File(directory, COMMITTED_TEMP);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      DataOutputStream out = new DataOutputStream(fos);
+      out.writeLong(position.getSegment());
+      out.writeLong(position.getOffset());
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+
+    File committed = new File(directory, COMMITTED);
+    if (!tmp.renameTo(committed)) {
+      throw new IOException("Could not rename " + tmp + " to " + committed);
+    }
+  }
+
+  /**
+   * The position just after the last record appended.
+   */
+  public Position position() {
+    return new Position(segment, offset);
+  }
+
+  /**
+   * Deletes all segments that contain nothing at or after the given position.
+   */
+  public void deleteBefore(Position position) {
+    for (Long n : segments(directory)) {
+      if (n < position.getSegment() && n != segment) {
+        File f = segmentFile(directory, n);
+        if (!f.delete()) {
+          logger.warn("Could not delete old recovery log segment " + f);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      file.close();
+    }
+  }
+
+  private void roll() throws IOException {
+    synchronized (syncLock) {
+      if (file != null) {
+        // a later sync will only force the new segment so the old one has to be forced now
+        channel.force(false);
+        file.close();
+      }
+      segment++;
+      offset = 0;
+      file = new RandomAccessFile(segmentFile(directory, segment), "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+    }
+  }
+
+  /**
+   * Reads every event in the log from the given position onwards, up to the last committed
+   * position if there is one.
+   *
+   * @param directory The directory containing the log segments.
+   * @param start     Where to start reading.  If null, all segments are read.
+   * @param listener  Receives each event in order.
+   * @return The number of events read.
+   */
+  public static long replay(File directory, Position start, Listener listener) throws IOException {
+    Position end = committed(directory);
+    long events = 0;
+    for (Long n : segments(directory)) {
+      if (end != null && n > end.getSegment()) {
+        break;
+      }
+      long offset = 0;
+      if (start != null) {
+        if (n < start.getSegment()) {
+          continue;
+        } else if (n == start.getSegment()) {
+          offset = start.getOffset();
+        }
+      }
+
+      FileInputStream in = new FileInputStream(segmentFile(directory, n));
+      try {
+        FileChannel channel = in.getChannel();
+        long limit = end != null && n == end.getSegment() ? Math.min(end.getOffset(), channel.size()) : channel.size();
+        if (offset < limit) {
+          MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, limit - offset);
+          events += replaySegment(buf, listener);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return events;
+  }
+
+  private static long replaySegment(ByteBuffer buf, Listener listener) {
+    CRC32 crc = new CRC32();
+    byte[] scratch = new byte[1024];
+
+    long events = 0;
+    while (buf.remaining() >= HEADER_SIZE) {
+      int payload = buf.getInt();
+      int expectedCrc = buf.getInt();
+      if (payload < 8 || payload > buf.remaining()) {
+        // truncated by a crash in the middle of a write
+        break;
+      }
+
+      if (scratch.length < payload) {
+        scratch = new byte[2 * payload];
+      }
+      buf.get(scratch, 0, payload);
+      crc.reset();
+      crc.update(scratch, 0, payload);
+      if ((int) crc.getValue() != expectedCrc) {
+        logger.warn("Checksum mismatch in recovery log, ignoring rest of segment");
+        break;
+      }
+
+      ByteBuffer record = ByteBuffer.wrap(scratch, 0, payload);
+      int keyLength = record.getInt();
+      String key = new String(scratch, record.position(), keyLength, Charsets.UTF_8);
+      record.position(record.position() + keyLength);
+      int valueLength = record.getInt();
+      String value = new String(scratch, record.position(), valueLength, Charsets.UTF_8);
+
+      listener.event(key, value);
+      events++;
+    }
+    return events;
+  }
+
+  /**
+   * Reads the last committed position.
+   *
+   * @return The position or null if the log has never been committed.
+   */
+  private static Position committed(File directory) throws IOException {
+    File committed = new File(directory, COMMITTED);
+    if (!committed.exists()) {
+      return null;
+    }
+
+    DataInputStream in = new DataInputStream(new FileInputStream(committed));
+    try {
+      long segment = in.readLong();
+      long offset = in.readLong();
+      return new Position(segment, offset);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes everything after the last committed position along with the record of that position.
+   * What remains was all acknowledged so it is replayed in full even if this log never commits.
+   */
+  private static void truncateUncommitted(File directory) throws IOException {
+    Position end = committed(directory);
+    if (end == null) {
+      return;
+    }
+    for (Long n : segments(directory)) {
+      File f = segmentFile(directory, n);
+      if (n > end.getSegment()) {
+        if (!f.delete()) {
+          throw new IOException("Could not delete uncommitted recovery log segment " + f);
+        }
+      } else if (n == end.getSegment() && f.length() > end.getOffset()) {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+          raf.setLength(end.getOffset());
+          raf.getFD().sync();
+        } finally {
+          raf.close();
+        }
+      }
+    }
+    if (!new File(directory, COMMITTED).delete()) {
+      throw new IOException("Could not delete " + new File(directory, COMMITTED));
+    }
+  }
+
+  private static File segmentFile(File directory, long n) {
+    return new File(directory, String.format("%016d%s", n, SUFFIX));
+  }
+
+  private static List<Long> segments(File directory) {
+    String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+
+    List<Long> r = Lists.newArrayList();
+    if (names != null) {
+      for (String name : names) {
+        try {
+          r.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          logger.warn("Ignoring unexpected file in recovery log directory: " + name);
+        }
+      }
+    }
+    Collections.sort(r);
+    return r;
+  }
+
+  /**
+   * Receives events during replay.
+   */
+  public interface Listener {
+    void event(String key, String value);
+  }
+
+  /**
+   * A segment number and a byte offset within that segment.
+   */
+  public static class Position implements Comparable<Position> {
+    private final long segment;
+    private final long offset;
+
+    public Position(long segment, long offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+
+    public long getSegment() {
+      return segment;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    @Override
+    public int compareTo(Position other) {
+      if (segment != other.segment) {
+        return segment < other.segment ? -1 : 1;
+      } else if (offset != other.offset) {
+        return offset < other.offset ? -1 : 1;
+      } else {
+        return 0;
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Position && compareTo((Position) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (31 * segment + offset);
+    }
+
+    @Override
+    public String toString() {
+      return segment + ":" + offset;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts (key, value) pairs at several time resolutions at once, for instance by second, minute,
+ * hour and day.  Events are only ever added to the finest resolution.  When a slot at one
+ * resolution closes, its count is added to the open slot at the next coarser resolution, so the
+ * coarser counts never need the original events.
+ * <p/>
+ * Each level keeps a list of the pairs with a count in its open slot, so closing a slot only
+ * visits the pairs that changed during it rather than every pair.  A pair keeps a ring of closed
+ * slots at a level only while one of those slots holds a count.  Each level also remembers which
+ * pairs wrote each ring position, so when a position comes round again the pairs that haven't
+ * written since give up their ring, and a pair with no counts left anywhere is dropped.  Idle
+ * pairs therefore cost nothing per slot and are gone once their last count leaves every ring.
+ */
+public class Rollup implements Serializable {
+  private final Level[] levels;
+
+  // the start of the open slot at each level and how many slots have closed at that level.  A
+  // closed slot is stored in the ring at its number modulo the ring size
+  private final long[] start;
+  private final long[] closed;
+  private boolean started = false;
+
+  private final Map<String, Map<String, Cell>> cells = Maps.newHashMap();
+  private int size = 0;
+
+  // for each level, the pairs with a count in the open slot
+  private final List<List<Cell>> dirty = Lists.newArrayList();
+  // for each level and ring position, the pairs that stored a count there
+  private final List<List<List<Cell>>> written = Lists.newArrayList();
+
+  public Rollup(Level... levels) {
+    if (levels.length == 0) {
+      throw new IllegalArgumentException("Need at least one level");
+    }
+    for (int i = 1; i < levels.length; i++) {
+      if (levels[i].duration % levels[i - 1].duration != 0) {
+        throw new IllegalArgumentException(String.format("Level %s is not a multiple of level %s", levels[i].name, levels[i - 1].name));
+      }
+    }
+
+    this.levels = levels.clone();
+    start = new long[levels.length];
+    closed = new long[levels.length];
+    for (Level level : levels) {
+      dirty.add(Lists.<Cell>newArrayList());
+      List<List<Cell>> positions = Lists.newArrayList();
+      for (int i = 0; i < level.slots; i++) {
+        positions.add(Lists.<Cell>newArrayList());
+      }
+      written.add(positions);
+    }
+  }
+
+  /**
+   * Seconds, minutes and hours for a day and days for a week.
+   */
+  public static Level[] standardLevels() {
+    return new Level[]{
+        new Level("second", 1000, 60),
+        new Level("minute", 60 * 1000, 60),
+        new Level("hour", 60 * 60 * 1000, 24),
+        new Level("day", 24 * 60 * 60 * 1000, 7)
+    };
+  }
+
+  /**
+   * Adds n to the open slot at the finest resolution.
+   */
+  public void add(String key, String value, long n) {
+    Map<String, Cell> byValue = cells.get(key);
+    if (byValue == null) {
+      byValue = Maps.newHashMap();
+      cells.put(key, byValue);
+    }
+    Cell cell = byValue.get(value);
+    if (cell == null) {
+      cell = new Cell(key, value, levels.length);
+      byValue.put(value, cell);
+      size++;
+    }
+    cell.open[0] += n;
+    markDirty(cell, 0);
+  }
+
+  /**
+   * Closes every slot that ends at or before now, finest first.  The listener hears about each
+   * closed slot with a non-zero count.  The first call only sets where the slots start.
+   */
+  public void advance(long now, Listener listener) {
+    if (!started) {
+      for (int i = 0; i < levels.length; i++) {
+        start[i] = align(now, i);
+      }
+      started = true;
+      return;
+    }
+
+    while (now >= start[0] + levels[0].duration) {
+      if (!anyDirty() && now >= start[0] + 2 * levels[0].duration) {
+        // nothing is waiting anywhere so a long idle gap can be skipped in one step
+        skipTo(now);
+        return;
+      }
+      close(0, listener);
+      for (int i = 1; i < levels.length && start[i - 1] >= start[i] + levels[i].duration; i++) {
+        close(i, listener);
+      }
+    }
+  }
+
+  /**
+   * Returns a count for a pair.  Slot 0 is the open slot, slot 1 the most recently closed slot
+   * and so on back to the number of slots kept at that level.
+   */
+  public long get(String key, String value, int level, int ago) {
+    if (ago < 0 || ago > levels[level].slots) {
+      throw new IllegalArgumentException("Only " + levels[level].slots + " slots are kept at level " + levels[level].name);
+    }
+    Map<String, Cell> byValue = cells.get(key);
+    Cell cell = byValue == null ? null : byValue.get(value);
+    if (cell == null) {
+      return 0;
+    }
+    if (ago == 0) {
+      return cell.open[level];
+    }
+    long slot = closed[level] - ago;
+    long[] ring = cell.rings[level];
+    if (ring == null || slot < 0 || slot > cell.last[level]) {
+      return 0;
+    }
+    return ring[(int) (slot % levels[level].slots)];
+  }
+
+  /**
+   * Returns the count for a pair since the start of the slot that is slots - 1 slots before the
+   * open slot at a level.  This includes the open slots at all finer levels since their counts
+   * haven't been passed up yet.
+   */
+  public long sum(String key, String value, int level, int slots) {
+    if (slots < 1 || slots > levels[level].slots + 1) {
+      throw new IllegalArgumentException("Can only sum 1 to " + (levels[level].slots + 1) + " slots at level " + levels[level].name);
+    }
+    long r = 0;
+    for (int i = 0; i <= level; i++) {
+      r += get(key, value, i, 0);
+    }
+    for (int ago = 1; ago < slots; ago++) {
+      r += get(key, value, level, ago);
+    }
+    return r;
+  }
+
+  /**
+   * The values being tracked for a key.
+   */
+  public Set<String> values(String key) {
+    Map<String, Cell> byValue = cells.get(key);
+    if (byValue == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(byValue.keySet());
+  }
+
+  /**
+   * The start of the open slot at a level.
+   */
+  public long getStart(int level) {
+    return start[level];
+  }
+
+  public Level getLevel(int level) {
+    return levels[level];
+  }
+
+  /**
+   * The number of pairs being tracked.
+   */
+  public int size() {
+    return size;
+  }
+
+  private void close(int level, Listener listener) {
+    Level l = levels[level];
+    long slot = closed[level];
+    int position = (int) (slot % l.slots);
+    boolean coarsest = level == levels.length - 1;
+
+    // the counts stored here one turn ago can't be read any more
+    release(level, position, slot - l.slots);
+
+    List<Cell> changed = dirty.get(level);
+    List<Cell> writers = written.get(level).get(position);
+    for (Cell cell : changed) {
+      cell.dirty[level] = false;
+      long n = cell.open[level];
+      cell.open[level] = 0;
+      if (n != 0) {
+        cell.write(level, slot, n, l.slots);
+        writers.add(cell);
+        if (!coarsest) {
+          cell.open[level + 1] += n;
+          markDirty(cell, level + 1);
+        }
+        listener.closed(cell.key, cell.value, l, start[level], n);
+      } else {
+        evictIfEmpty(cell);
+      }
+    }
+    changed.clear();
+
+    closed[level]++;
+    start[level] += l.duration;
+  }
+
+  /**
+   * Drops the rings of the pairs whose last count at a level went in the given slot and drops
+   * the pairs that have nothing left.
+   */
+  private void release(int level, int position, long slot) {
+    List<Cell> writers = written.get(level).get(position);
+    for (Cell cell : writers) {
+      if (cell.last[level] == slot) {
+        cell.rings[level] = null;
+        evictIfEmpty(cell);
+      }
+    }
+    writers.clear();
+  }
+
+  private void markDirty(Cell cell, int level) {
+    if (!cell.dirty[level]) {
+      cell.dirty[level] = true;
+      dirty.get(level).add(cell);
+    }
+  }
+
+  private void evictIfEmpty(Cell cell) {
+    if (!cell.isEmpty()) {
+      return;
+    }
+    Map<String, Cell> byValue = cells.get(cell.key);
+    // a pair that was dropped and came back has a new cell which has to stay
+    if (byValue != null && byValue.get(cell.value) == cell) {
+      byValue.remove(cell.value);
+      size--;
+      if (byValue.isEmpty()) {
+        cells.remove(cell.key);
+      }
+    }
+  }
+
+  /**
+   * Moves every level to the slot containing now when no open slot holds anything.  The rings
+   * are released for each position skipped over, at most one turn of each ring.
+   */
+  private void skipTo(long now) {
+    for (int i = 0; i < levels.length; i++) {
+      long steps = (align(now, i) - start[i]) / levels[i].duration;
+      int slots = levels[i].slots;
+      for (long j = 0; j < Math.min(steps, slots); j++) {
+        long slot = closed[i] + j;
+        release(i, (int) (slot % slots), slot - slots);
+      }
+      closed[i] += steps;
+      start[i] = align(now, i);
+    }
+  }
+
+  private long align(long time, int level) {
+    long duration = levels[level].duration;
+    return time - ((time % duration) + duration) % duration;
+  }
+
+  private boolean anyDirty() {
+    for (List<Cell> pairs : dirty) {
+      if (!pairs.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * One time resolution.  Each level's duration must be a multiple of the previous level's.
+   */
+  public static class Level implements Serializable {
+    private final String name;
+    private final long duration;
+    private final int slots;
+
+    /**
+     * @param name     The name used for this level in output.
+     * @param duration The length of a slot in ms.
+     * @param slots    How many closed slots to keep for queries.
+     */
+    public Level(String name, long duration, int slots) {
+      if (duration < 1 || slots < 1) {
+        throw new IllegalArgumentException("Duration and slots must be positive");
+      }
+      this.name = name;
+      this.duration = duration;
+      this.slots = slots;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getDuration() {
+      return duration;
+    }
+
+    public int getSlots() {
+      return slots;
+    }
+  }
+
+  public interface Listener {
+    /**
+     * Called for each pair with a non-zero count when a slot closes.
+     */
+    void closed(String key, String value, Level level, long start, long count);
+  }
+
+  /**
+   * The counts for one pair.  The ring of closed slots at a level is only allocated while one of
+   * them holds a count, so a pair that is quiet at a fine level costs nothing there.
+   */
+  private static class Cell implements Serializable {
+    private final String key;
+    private final String value;
+    // the open slot at each level
+    private final long[] open;
+    // true at each level where this pair is on the dirty list
+    private final boolean[] dirty;
+    // the closed slots at each level, or null while none of them hold a count
+    private final long[][] rings;
+    // the number of the last closed slot written at each level.  Ring entries for later slots
+    // are stale and read as zero
+    private final long[] last;
+
+    private Cell(String key, String value, int levels) {
+      this.key = key;
+      this.value = value;
+      open = new long[levels];
+      dirty = new boolean[levels];
+      rings = new long[levels][];
+      last = new long[levels];
+    }
+
+    private void write(int level, long slot, long n, int slots) {
+      long[] ring = rings[level];
+      if (ring == null) {
+        ring = new long[slots];
+        rings[level] = ring;
+      } else {
+        // nothing was written for the slots since the last write so they are cleared now
+        for (long k = Math.max(last[level] + 1, slot - slots + 1); k < slot; k++) {
+          ring[(int) (k % slots)] = 0;
+        }
+      }
+      ring[(int) (slot % slots)] = n;
+      last[level] = slot;
+    }
+
+    private boolean isEmpty() {
+      for (int i = 0; i < open.length; i++) {
+        if (dirty[i] || rings[i] != null) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.IRichBolt;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts (key, value) pairs at several time resolutions in one bolt, for instance by second,
+ * minute, hour and day.  Each resolution is emitted as its slots close with fields "key", "value",
+ * "count", "resolution" and "start".  Coarser resolutions are built from finer ones as described
+ * in {@link Rollup}, so one of these can replace a chain of counters with longer and longer
+ * windows.
+ * <p/>
+ * Input tuples start with a key and a value.  If they have a field called "count" it is added
+ * to the pair, otherwise each tuple counts once, so this bolt can be fed raw events or the output
+ * of a {@link CounterBolt}.  Time comes from the clock unless {@link #withTimeField(String)}
+ * names a field holding a time stamp, such as the window start emitted by a CounterBolt in
+ * event-time mode.  A tuple that is older than the open slot is counted in the open slot.
+ * <p/>
+ * Outputs for the finest resolution are anchored to the input tuples that went into them and
+ * those tuples are acknowledged when the slot closes.  Coarser resolutions are emitted unanchored
+ * since their inputs have long been acknowledged.  Counts in slots that are still open when the
+ * bolt shuts down are not emitted and their tuples are not acknowledged, so they will be replayed.
+ */
+public class RollupBolt implements IRichBolt {
+  private static final transient Logger logger = Logger.getLogger(RollupBolt.class);
+
+  private final Rollup.Level[] levels;
+  private String timeField = null;
+
+  private transient Rollup rollup;
+  private transient OutputCollector outputCollector;
+  // the input tuples for the open slot at the finest resolution
+  private transient Map<String, Map<String, List<Tuple>>> slotTuples;
+  private transient Rollup.Listener emitter;
+
+  public RollupBolt() {
+    this(Rollup.standardLevels());
+  }
+
+  public RollupBolt(Rollup.Level... levels) {
+    // check the levels now rather than when the topology starts
+    new Rollup(levels);
+    this.levels = levels;
+  }
+
+  /**
+   * Takes the time of each tuple from a field instead of the clock.
+   *
+   * @param timeField The name of the field holding the time stamp in ms.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public RollupBolt withTimeField(String timeField) {
+    this.timeField = timeField;
+    return this;
+  }
+
+  @Override
+  public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
+    this.outputCollector = outputCollector;
+    rollup = new Rollup(levels);
+    slotTuples = Maps.newHashMap();
+    emitter = new Rollup.Listener() {
+      @Override
+      public void closed(String key, String value, Rollup.Level level, long start, long count) {
+        List<Tuple> anchors = Collections.emptyList();
+        if (level == rollup.getLevel(0)) {
+          Map<String, List<Tuple>> byValue = slotTuples.get(key);
+          if (byValue != null && byValue.containsKey(value)) {
+            anchors = byValue.get(value);
+          }
+        }
+        RollupBolt.this.outputCollector.emit(anchors, new Values(key, value, count, level.getName(), start));
+      }
+    };
+  }
+
+  @Override
+  public void execute(Tuple tuple) {
+    long now = timeField != null ? ((Number) tuple.getValueByField(timeField)).longValue() : now();
+    advance(now);
+
+    String key = tuple.getString(0);
+    String value = tuple.getString(1);
+    long n = tuple.contains("count") ? ((Number) tuple.getValueByField("count")).longValue() : 1;
+    rollup.add(key, value, n);
+
+    Map<String, List<Tuple>> byValue = slotTuples.get(key);
+    if (byValue == null) {
+      byValue = Maps.newHashMap();
+      slotTuples.put(key, byValue);
+    }
+    List<Tuple> tuples = byValue.get(value);
+    if (tuples == null) {
+      tuples = Lists.newArrayList();
+      byValue.put(value, tuples);
+    }
+    tuples.add(tuple);
+  }
+
+  private void advance(long now) {
+    long slot = rollup.getStart(0);
+    rollup.advance(now, emitter);
+    if (rollup.getStart(0) != slot && !slotTuples.isEmpty()) {
+      // the finest slot has closed and its outputs are anchored so its inputs are done
+      for (Map<String, List<Tuple>> byValue : slotTuples.values()) {
+        for (List<Tuple> tuples : byValue.values()) {
+          for (Tuple tuple : tuples) {
+            outputCollector.ack(tuple);
+          }
+        }
+      }
+      slotTuples = Maps.newHashMap();
+    }
+  }
+
+  /**
+   * A count for a pair at one resolution.  See {@link Rollup#get}.
+   */
+  public long get(String key, String value, int level, int ago) {
+    return rollup.get(key, value, level, ago);
+  }
+
+  private long now() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public void cleanup() {
+    logger.info(String.format("Shutting down with %d pairs in the rollup", rollup.size()));
+  }
+
+  @Override
+  public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    declarer.declare(new Fields("key", "value", "count", "resolution", "start"));
+  }
+}
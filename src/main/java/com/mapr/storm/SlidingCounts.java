@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import java.io.Serializable;
+
+/**
+ * Keeps counts over a window made up of a fixed number of time slices.  The counts for each slice
+ * are kept in a ring along with a running total for the whole window.  Moving the window forward
+ * subtracts the slices that fall off the end from the total, so the cost of keeping the total is
+ * proportional to the number of pairs in the slices that change rather than to the length of the
+ * window.
+ */
+public class SlidingCounts implements Serializable {
+  private final PairCountTable<String, String>[] slices;
+  private PairCountTable<String, String> totals = new PairCountTable<String, String>();
+
+  // the slot in the ring for the current slice
+  private int current = 0;
+
+  /**
+   * @param windowSlices How many slices make up the window including the current one.
+   */
+  @SuppressWarnings("unchecked")
+  public SlidingCounts(int windowSlices) {
+    if (windowSlices < 1) {
+      throw new IllegalArgumentException("Window must have at least one slice");
+    }
+    slices = new PairCountTable[windowSlices];
+  }
+
+  /**
+   * Adds counts to the current slice.  The table passed in becomes owned by this object and must
+   * not be changed afterwards.
+   */
+  public void add(PairCountTable<String, String> counts) {
+    if (counts.isEmpty()) {
+      return;
+    }
+    totals.addAll(counts);
+    if (slices[current] == null) {
+      slices[current] = counts;
+    } else {
+      slices[current].addAll(counts);
+    }
+  }
+
+  /**
+   * Moves the window forward by n slices.  Slices that fall out of the window are subtracted from
+   * the totals.
+   */
+  public void advance(long n) {
+    if (n >= slices.length) {
+      for (int i = 0; i < slices.length; i++) {
+        slices[i] = null;
+      }
+      totals = new PairCountTable<String, String>();
+      return;
+    }
+
+    for (int i = 0; i < n; i++) {
+      current = (current + 1) % slices.length;
+      if (slices[current] != null) {
+        totals.subtractAll(slices[current]);
+        slices[current] = null;
+      }
+    }
+  }
+
+  /**
+   * The counts over all slices in the window.  This is a live view that changes as slices are
+   * added or expire.
+   */
+  public PairCountTable<String, String> totals() {
+    return totals;
+  }
+
+  public int getWindowSlices() {
+    return slices.length;
+  }
+}
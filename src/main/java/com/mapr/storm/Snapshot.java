@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A snapshot is nothing more than a reference to a position in a {@link RecoveryLog}.  Everything
+ * before that position has already been emitted so recovery only needs to replay the log from
+ * there.
+ * <p/>
+ * Snapshots are written to a temporary file which is then renamed over the previous snapshot so
+ * that a crash never leaves a partially written snapshot behind.
+ */
+public class Snapshot {
+  private static final String NAME = "snapshot";
+  private static final String TEMP_NAME = "snapshot.tmp";
+
+  private Snapshot() {
+  }
+
+  public static void write(File directory, RecoveryLog.Position position) throws IOException {
+    File tmp = new File(directory, TEMP_NAME);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      DataOutputStream out = new DataOutputStream(fos);
+      out.writeLong(position.getSegment());
+      out.writeLong(position.getOffset());
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+
+    File snapshot = new File(directory, NAME);
+    if (!tmp.renameTo(snapshot)) {
+      throw new IOException("Could not rename " + tmp + " to " + snapshot);
+    }
+  }
+
+  /**
+   * Reads the most recent snapshot.
+   *
+   * @return The position recorded in the snapshot or null if there is no snapshot yet.
+   */
+  public static RecoveryLog.Position read(File directory) throws IOException {
+    File snapshot = new File(directory, NAME);
+    if (!snapshot.exists()) {
+      return null;
+    }
+
+    DataInputStream in = new DataInputStream(new FileInputStream(snapshot));
+    try {
+      long segment = in.readLong();
+      long offset = in.readLong();
+      return new RecoveryLog.Position(segment, offset);
+    } finally {
+      in.close();
+    }
+  }
+}
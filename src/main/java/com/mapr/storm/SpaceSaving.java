@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the most frequent (key, value) pairs in a stream using a fixed number of counters.  This
+ * is the Space-Saving algorithm of Metwally, Agrawal and El Abbadi.  When a pair arrives that
+ * doesn't have a counter and all counters are in use, the counter with the smallest count is
+ * taken over by the new pair.  The new pair inherits the old count as its possible error.
+ * <p/>
+ * With m counters and a stream of n items, every count overestimates the true count by at most
+ * n / m and any pair with a true count above n / m is guaranteed to have a counter.  The error
+ * recorded with each counter is usually a much tighter bound than that.
+ * <p/>
+ * Counters are kept in a min-heap so that finding the smallest counter is cheap.  Looking up a
+ * pair that already has a counter doesn't allocate anything.
+ */
+public class SpaceSaving<A, B> implements Serializable {
+  private final int capacity;
+  private final Counter<A, B>[] heap;
+  private final Map<Counter<A, B>, Counter<A, B>> index;
+  private final Counter<A, B> probe = new Counter<A, B>();
+
+  private int size = 0;
+  private long total = 0;
+
+  @SuppressWarnings("unchecked")
+  public SpaceSaving(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Need at least one counter");
+    }
+    this.capacity = capacity;
+    this.heap = new Counter[capacity];
+    this.index = Maps.newHashMapWithExpectedSize(capacity);
+  }
+
+  /**
+   * The number of counters needed to find the top k pairs with counts accurate to within
+   * epsilon times the number of items counted.
+   */
+  public static int capacityFor(int k, double epsilon) {
+    return Math.max(k, (int) Math.ceil(1 / epsilon));
+  }
+
+  public void add(A first, B second) {
+    add(first, second, 1);
+  }
+
+  public void add(A first, B second, long n) {
+    total += n;
+
+    probe.set(first, second);
+    Counter<A, B> c = index.get(probe);
+    if (c == null) {
+      if (size < capacity) {
+        c = new Counter<A, B>();
+        c.set(first, second);
+        c.count = n;
+        c.heapIndex = size;
+        heap[size++] = c;
+        index.put(c, c);
+        // a new counter starts at the bottom and may be smaller than its parent
+        siftUp(size - 1);
+        return;
+      } else {
+        // take over the smallest counter
+        c = heap[0];
+        index.remove(c);
+        c.set(first, second);
+        c.error = c.count;
+      }
+      index.put(c, c);
+    }
+    c.count += n;
+    siftDown(c.heapIndex);
+  }
+
+  /**
+   * Returns up to k pairs with the largest counts, largest first.
+   */
+  public List<Counter<A, B>> top(int k) {
+    List<Counter<A, B>> r = Lists.newArrayList();
+    for (int i = 0; i < size; i++) {
+      r.add(heap[i]);
+    }
+    Collections.sort(r, new Comparator<Counter<A, B>>() {
+      @Override
+      public int compare(Counter<A, B> a, Counter<A, B> b) {
+        return a.count > b.count ? -1 : (a.count < b.count ? 1 : 0);
+      }
+    });
+    return r.subList(0, Math.min(k, r.size()));
+  }
+
+  /**
+   * The largest count that a pair without a counter could have.
+   */
+  public long maxUncountedCount() {
+    return size < capacity ? 0 : heap[0].count;
+  }
+
+  /**
+   * The number of items counted.
+   */
+  public long total() {
+    return total;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  private void siftUp(int i) {
+    Counter<A, B> c = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (heap[parent].count <= c.count) {
+        break;
+      }
+      heap[i] = heap[parent];
+      heap[i].heapIndex = i;
+      i = parent;
+    }
+    heap[i] = c;
+    c.heapIndex = i;
+  }
+
+  private void siftDown(int i) {
+    Counter<A, B> c = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (heap[child].count >= c.count) {
+        break;
+      }
+      heap[i] = heap[child];
+      heap[i].heapIndex = i;
+      i = child;
+    }
+    heap[i] = c;
+    c.heapIndex = i;
+  }
+
+  /**
+   * The count for one pair.  The true count is between getCount() - getError() and getCount().
+   */
+  public static class Counter<A, B> implements Serializable {
+    private A first;
+    private B second;
+    private int hash;
+    private long count;
+    private long error;
+    private int heapIndex;
+
+    private void set(A first, B second) {
+      this.first = first;
+      this.second = second;
+      this.hash = PairCountTable.hash(first, second);
+    }
+
+    public A getFirst() {
+      return first;
+    }
+
+    public B getSecond() {
+      return second;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+
+    /**
+     * The count that this pair is certain to have reached.
+     */
+    public long getGuaranteedCount() {
+      return count - error;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Counter)) {
+        return false;
+      }
+      Counter other = (Counter) o;
+      return hash == other.hash && first.equals(other.first) && second.equals(other.second);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
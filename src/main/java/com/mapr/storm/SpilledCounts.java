@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts for one window that didn't fit in memory.  Each time the count table for the window gets
+ * too big, its pairs are sorted and written to a file as a run and the table is cleared.  When the
+ * window is emitted, the runs and whatever is left in the table are merged in a single streaming
+ * pass so the counts come out exact with only one pair from each run in memory at a time.
+ * <p/>
+ * A run is a count of records followed by the records, each a key, a value and a count, sorted by
+ * key and then by value.  Keys and values are written as their length followed by their UTF-8
+ * bytes since writeUTF can't handle strings longer than 64KB.
+ */
+public class SpilledCounts {
+  private static final String PREFIX = "spill-";
+  private static final String SUFFIX = ".run";
+
+  private final File directory;
+  private final List<File> runs = Lists.newArrayList();
+
+  public SpilledCounts(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Deletes runs left behind by a crash.  Only call this for a directory that no running bolt is
+   * spilling into.
+   */
+  public static void deleteStaleRuns(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX)) {
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the counts as a new sorted run.  The caller can then clear the table.
+   */
+  public void spill(PairCountTable<String, String> counts) throws IOException {
+    List<Entry> entries = sorted(counts);
+    File run = File.createTempFile(PREFIX, SUFFIX, directory);
+    runs.add(run);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+    try {
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        writeString(out, entry.key);
+        writeString(out, entry.value);
+        out.writeLong(entry.count);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  public int runs() {
+    return runs.size();
+  }
+
+  /**
+   * Merges all of the runs with the counts that are still in memory and passes each pair to the
+   * listener exactly once, in order.  Pairs whose counts add up to zero are skipped.
+   */
+  public void merge(PairCountTable<String, String> rest, Listener listener) throws IOException {
+    PriorityQueue<Source> heads = new PriorityQueue<Source>(runs.size() + 1, BY_HEAD);
+    List<RunSource> open = Lists.newArrayList();
+    try {
+      for (File run : runs) {
+        RunSource source = new RunSource(run);
+        open.add(source);
+        if (source.next()) {
+          heads.add(source);
+        }
+      }
+      Source memory = new MemorySource(sorted(rest).iterator());
+      if (memory.next()) {
+        heads.add(memory);
+      }
+
+      while (!heads.isEmpty()) {
+        Source first = heads.poll();
+        String key = first.head.key;
+        String value = first.head.value;
+        long count = first.head.count;
+        if (first.next()) {
+          heads.add(first);
+        }
+        while (!heads.isEmpty() && heads.peek().head.key.equals(key) && heads.peek().head.value.equals(value)) {
+          Source same = heads.poll();
+          count += same.head.count;
+          if (same.next()) {
+            heads.add(same);
+          }
+        }
+        if (count != 0) {
+          listener.pair(key, value, count);
+        }
+      }
+    } finally {
+      for (RunSource source : open) {
+        source.close();
+      }
+    }
+  }
+
+  /**
+   * Deletes all of the runs.
+   */
+  public void delete() {
+    for (File run : runs) {
+      //noinspection ResultOfMethodCallIgnored
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  private static List<Entry> sorted(PairCountTable<String, String> counts) {
+    List<Entry> r = Lists.newArrayListWithCapacity(counts.size());
+    PairCountTable.Cursor<String, String> entries = counts.cursor();
+    while (entries.next()) {
+      r.add(new Entry(entries.first(), entries.second(), entries.count()));
+    }
+    Collections.sort(r, BY_PAIR);
+    return r;
+  }
+
+  public interface Listener {
+    void pair(String key, String value, long count);
+  }
+
+  private static final Comparator<Entry> BY_PAIR = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      int r = a.key.compareTo(b.key);
+      return r != 0 ? r : a.value.compareTo(b.value);
+    }
+  };
+
+  private static final Comparator<Source> BY_HEAD = new Comparator<Source>() {
+    @Override
+    public int compare(Source a, Source b) {
+      return BY_PAIR.compare(a.head, b.head);
+    }
+  };
+
+  private static class Entry {
+    private final String key;
+    private final String value;
+    private final long count;
+
+    private Entry(String key, String value, long count) {
+      this.key = key;
+      this.value = value;
+      this.count = count;
+    }
+  }
+
+  /**
+   * A sorted stream of entries.  After next returns true, head is the current entry.
+   */
+  private abstract static class Source {
+    Entry head;
+
+    abstract boolean next() throws IOException;
+  }
+
+  private static class MemorySource extends Source {
+    private final Iterator<Entry> entries;
+
+    private MemorySource(Iterator<Entry> entries) {
+      this.entries = entries;
+    }
+
+    @Override
+    boolean next() {
+      if (!entries.hasNext()) {
+        return false;
+      }
+      head = entries.next();
+      return true;
+    }
+  }
+
+  private static class RunSource extends Source {
+    private final DataInputStream in;
+    private int remaining;
+
+    private RunSource(File run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 64 * 1024));
+      remaining = in.readInt();
+    }
+
+    @Override
+    boolean next() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      head = new Entry(readString(in), readString(in), in.readLong());
+      return true;
+    }
+
+    private void close() throws IOException {
+      in.close();
+    }
+  }
+}
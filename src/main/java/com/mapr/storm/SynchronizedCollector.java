@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An output collector that lets one call through at a time.  The collector Storm hands to a bolt
+ * is only meant to be used by the thread that calls execute, so a bolt that also emits or
+ * acknowledges from threads of its own wraps its collector in one of these in prepare.  That is
+ * the only locking done around collectors, so a bolt that never leaves the execute thread pays
+ * nothing.
+ */
+class SynchronizedCollector extends OutputCollector {
+  private final OutputCollector delegate;
+
+  SynchronizedCollector(OutputCollector delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public synchronized List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+    return delegate.emit(streamId, anchors, tuple);
+  }
+
+  @Override
+  public synchronized void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+    delegate.emitDirect(taskId, streamId, anchors, tuple);
+  }
+
+  @Override
+  public synchronized void ack(Tuple input) {
+    delegate.ack(input);
+  }
+
+  @Override
+  public synchronized void fail(Tuple input) {
+    delegate.fail(input);
+  }
+
+  @Override
+  public synchronized void reportError(Throwable error) {
+    delegate.reportError(error);
+  }
+}
@@ -26,79 +26,172 @@ import backtype.storm.tuple.Tuple;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import org.apache.log4j.Logger;
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 /**
  * Does a time limited join.  This means that incoming items are retained for a limited period of
  * time or until a joining record is found.  When a join is found a composite record is emitted and
  * both incoming records are acknowledged.  When the time limit is reached, an incoming tuple that
  * is about to be discarded is acknowledged before discarding it.
+ * <p/>
+ * Pending tuples are kept in a {@link TimingWheel} so that adding one and removing it when it
+ * matches both take constant time and memory is only used by tuples that are still waiting.
+ * Tuples expire up to 1/64 of the expiration time late.
+ * <p/>
+ * The pending tuples are held in a {@link JoinState}.  Storm calls execute from one thread per
+ * task, so the join is spread over cores by running more tasks with the input grouped on the
+ * join key, and each task uses a single shard.  With {@link #withMultiMatch(int)}, a tuple joins
+ * every other tuple with the same key that arrives within the expiration time rather than just
+ * the first.
+ * <p/>
+ * By default any two tuples with the same key join, even if they came from the same place.  A
+ * join built with left and right sides instead only joins a tuple from one side with tuples from
+ * the other.  Each side is named by a stream id or a component id and has its own key fields, and
+ * the output has the key, then the left tuple, then the right tuple.
  */
 public class TimeLimitedJoin implements IRichBolt {
+  private static final transient Logger logger = Logger.getLogger(TimeLimitedJoin.class);
+
   private final long expirationTime;
   private final int maxTuplesToRetain;
-  private final Fields joinKey;
+  // null for a join without sides.  Otherwise the left and right side names
+  private final String[] sides;
+  // one set of key fields per side, or just one without sides
+  private final Fields[] joinKeys;
+  private int maxPerKey = 0;
   private OutputCollector collector;
 
-  private final Queue<TimedTuple> queue = new LinkedList<TimedTuple>();
-  private final Map<Key, TimedTuple> pendingByKey = Maps.newHashMap();
+  private transient JoinState<Key, Tuple> state;
+  private transient JoinState.Listener<Key, Tuple> listener;
+  // the positions of the key fields in tuples from each source component and stream
+  private transient Map<String, Map<String, int[]>> keyIndices;
 
   public TimeLimitedJoin(long expirationTime, int maxTuplesToRetain, Fields joinKey) {
     this.expirationTime = expirationTime;
     this.maxTuplesToRetain = maxTuplesToRetain;
-    this.joinKey = joinKey;
+    this.sides = null;
+    this.joinKeys = new Fields[]{joinKey};
+  }
+
+  /**
+   * Builds a join between two inputs.  A tuple is on the left if its stream id or source
+   * component id is the left name, else on the right if either is the right name.  Tuples from
+   * anywhere else are acknowledged and dropped.
+   *
+   * @param left     The stream or component id of the left input.
+   * @param leftKey  The fields that hold the join key in left tuples.
+   * @param right    The stream or component id of the right input.
+   * @param rightKey The fields that hold the join key in right tuples.  Compared in order with
+   *                 the left key fields.
+   */
+  public TimeLimitedJoin(long expirationTime, int maxTuplesToRetain, String left, Fields leftKey, String right, Fields rightKey) {
+    if (left.equals(right)) {
+      throw new IllegalArgumentException("Left and right sides need different names");
+    }
+    if (leftKey.size() != rightKey.size()) {
+      throw new IllegalArgumentException("Left and right keys need the same number of fields");
+    }
+    this.expirationTime = expirationTime;
+    this.maxTuplesToRetain = maxTuplesToRetain;
+    this.sides = new String[]{left, right};
+    this.joinKeys = new Fields[]{leftKey, rightKey};
+  }
+
+  /**
+   * Joins each tuple with every other tuple with the same key that arrives within the expiration
+   * time, instead of only with the first.  Up to maxPerKey tuples are kept for each key and the
+   * oldest is dropped to make room for a new one, so a single hot key can't take all the memory.
+   * <p/>
+   * A tuple may join several others so it is only acknowledged once it expires or is dropped.
+   * The expiration time has to be well under the topology message timeout.
+   *
+   * @param maxPerKey The most tuples to keep for one key.
+   * @return This bolt so that configuration calls can be chained.
+   */
+  public TimeLimitedJoin withMultiMatch(int maxPerKey) {
+    if (maxPerKey < 1) {
+      throw new IllegalArgumentException("Need room for at least one tuple per key");
+    }
+    this.maxPerKey = maxPerKey;
+    return this;
   }
 
   @Override
-  public void prepare(Map config, TopologyContext context, OutputCollector collector) {
+  public void prepare(Map config, TopologyContext context, final OutputCollector collector) {
     this.collector = collector;
+    keyIndices = Maps.newHashMap();
+    state = new JoinState<Key, Tuple>(1, expirationTime, maxTuplesToRetain, maxPerKey);
+    listener = new JoinState.Listener<Key, Tuple>() {
+      @Override
+      public void matched(Key key, Tuple first, Tuple second) {
+        collector.emit(Arrays.asList(first, second), ImmutableList.of(key.values(), first, second));
+        if (maxPerKey == 0) {
+          collector.ack(first);
+          collector.ack(second);
+        }
+      }
+
+      @Override
+      public void expired(Key key, Tuple pending) {
+        collector.ack(pending);
+      }
+    };
   }
 
   @Override
-  public synchronized void execute(Tuple input) {
+  public void execute(Tuple input) {
     // expire old items first.  This avoids accidental joins with things that should
     // have been discarded which is required for stable statistics.
-    long cutoff = now() - expirationTime;
-    while (queue.size() > 0 && (queue.size() > maxTuplesToRetain || queue.peek().time < cutoff)) {
-      TimedTuple expiringTuple = queue.poll();
-      if (expiringTuple.tuple != null) {
-        collector.ack(expiringTuple.tuple);
-        Key key = extractJoinKey(input);
-        if (pendingByKey.get(key).time < cutoff) {
-          pendingByKey.remove(key);
-        }
+    long now = now();
+    state.expire(now, listener);
+    String component = input.getSourceComponent();
+    String stream = input.getSourceStreamId();
+    if (sides == null) {
+      state.offer(extractJoinKey(input, 0, component, stream), input, now, listener);
+    } else {
+      int side = side(component, stream);
+      if (side < 0) {
+        logger.warn(String.format("Dropped tuple from %s:%s which is neither side of the join", component, stream));
+        collector.ack(input);
+        return;
       }
+      state.offer(extractJoinKey(input, side, component, stream), side, input, now, listener);
     }
+  }
 
-    final Key key = extractJoinKey(input);
-    TimedTuple match = pendingByKey.get(key);
-    if (match != null) {
-      if (match.tuple != null) {
-        pendingByKey.remove(key);
-        collector.emit(Arrays.asList(input, match.tuple), ImmutableList.of(Lists.newArrayList(key), match.tuple, input));
-        collector.ack(input);
-        collector.ack(match.tuple);
-        match.tuple = null;
+  private int side(String component, String stream) {
+    for (int side = JoinState.LEFT; side <= JoinState.RIGHT; side++) {
+      if (sides[side].equals(stream) || sides[side].equals(component)) {
+        return side;
       }
-    } else {
-      final TimedTuple t = new TimedTuple(now(), input);
-      queue.add(t);
-      pendingByKey.put(key, t);
     }
+    return -1;
   }
 
-  private Key extractJoinKey(Tuple input) {
-    List<Object> keys = Lists.newArrayList();
-    for (String key : joinKey) {
-      keys.add(input.getValueByField(key));
+  /**
+   * Every tuple on a stream has the same fields, so the key fields are looked up by name only for
+   * the first tuple from each component and stream.  A source always maps to the same side.
+   */
+  private Key extractJoinKey(Tuple input, int side, String component, String stream) {
+    Map<String, int[]> byStream = keyIndices.get(component);
+    if (byStream == null) {
+      byStream = Maps.newHashMap();
+      keyIndices.put(component, byStream);
     }
-    return new Key(keys);
+    int[] indices = byStream.get(stream);
+    if (indices == null) {
+      Fields joinKey = joinKeys[side];
+      indices = new int[joinKey.size()];
+      for (int i = 0; i < indices.length; i++) {
+        indices[i] = input.fieldIndex(joinKey.get(i));
+      }
+      byStream.put(stream, indices);
+    }
+    return new Key(input, indices);
   }
 
   /**
@@ -115,14 +208,43 @@ public class TimeLimitedJoin implements IRichBolt {
 
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {
-    declarer.declare(new Fields("old", "new"));
+    if (sides == null) {
+      declarer.declare(new Fields("key", "old", "new"));
+    } else {
+      declarer.declare(new Fields("key", "left", "right"));
+    }
   }
 
-  private static class Key implements Iterable<Object>{
-    final List<Object> values;
+  /**
+   * A join key that reads its values straight out of the tuple it came from.  The hash mixes
+   * each field in turn so that it depends on the order of the fields and equal fields don't
+   * cancel out.
+   */
+  static class Key {
+    private final Tuple tuple;
+    private final int[] indices;
+    private final int hash;
+
+    Key(Tuple tuple, int[] indices) {
+      this.tuple = tuple;
+      this.indices = indices;
+      int h = indices.length;
+      for (int index : indices) {
+        Object value = tuple.getValue(index);
+        h = Hashing.mix(31 * h + (value == null ? 0 : value.hashCode()));
+      }
+      this.hash = h;
+    }
 
-    private Key(List<Object> values) {
-      this.values = values;
+    /**
+     * The values of the key fields.  Only used for output.
+     */
+    List<Object> values() {
+      List<Object> r = Lists.newArrayListWithCapacity(indices.length);
+      for (int index : indices) {
+        r.add(tuple.getValue(index));
+      }
+      return r;
     }
 
     @Override
@@ -133,61 +255,23 @@ public class TimeLimitedJoin implements IRichBolt {
       if (!(o instanceof Key)) {
         return false;
       }
-
       Key other = (Key) o;
-
-      if (values == other.values) {
-        return true;
-      } else if (values == null || other.values == null) {
-        return values == other.values;
-      } else {
-        if (values.size() != other.values.size()) {
+      if (hash != other.hash || indices.length != other.indices.length) {
+        return false;
+      }
+      for (int i = 0; i < indices.length; i++) {
+        Object value = tuple.getValue(indices[i]);
+        Object otherValue = other.tuple.getValue(other.indices[i]);
+        if (value == null ? otherValue != null : !value.equals(otherValue)) {
           return false;
         }
-        Iterator i = other.values.iterator();
-        for (Object value : values) {
-          if (!i.hasNext() || !value.equals(i.next())) {
-            return false;
-          }
-        }
-        return true;
       }
+      return true;
     }
 
     @Override
     public int hashCode() {
-      int hash = 0;
-      for (Object value : values) {
-        hash = hash ^ value.hashCode();
-      }
       return hash;
     }
-
-    @Override
-    public Iterator<Object> iterator() {
-      return values.iterator();
-    }
-  }
-
-  private static class TimedTuple implements Comparable<TimedTuple> {
-    private final long time;
-    public Tuple tuple;
-
-    public TimedTuple(long time, Tuple tuple) {
-      this.time = time;
-      this.tuple = tuple;
-    }
-
-    @Override
-    public int compareTo(TimedTuple other) {
-      long r = (time - other.time);
-      if (r < 0) {
-        return -1;
-      } else if (r > 0) {
-        return 1;
-      } else {
-        return 0;
-      }
-    }
   }
 }
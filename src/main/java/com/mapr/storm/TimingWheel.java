@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+/**
+ * A hashed timing wheel.  Time is cut into ticks and each tick maps to one slot of a circular
+ * array of doubly linked lists.  Adding an item links it into the slot for its deadline and
+ * cancelling it unlinks it, both in constant time.  Advancing the clock only costs anything when
+ * a tick boundary has been crossed, and then only as much as the items that expire.
+ * <p/>
+ * There are enough slots that every deadline is less than one turn of the wheel away, so all of
+ * the items in a slot expire together when the wheel moves past it.  Items expire at the end of
+ * the tick that holds their deadline, so at most one tick late and never early.
+ */
+public class TimingWheel<T> {
+  private final long tick;
+  private final int mask;
+  // each slot is a circular list with a sentinel so that linking and unlinking never branch
+  private final Timeout[] slots;
+
+  // every tick before this one has been expired
+  private long current = Long.MIN_VALUE;
+  private int size = 0;
+
+  /**
+   * @param tick     The length of a tick in ms.
+   * @param maxDelay The longest time in ms from the current time to a deadline.
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tick, long maxDelay) {
+    if (tick < 1 || maxDelay < 0) {
+      throw new IllegalArgumentException("Tick must be positive and max delay can't be negative");
+    }
+    this.tick = tick;
+    long needed = maxDelay / tick + 2;
+    if (needed > 1 << 30) {
+      throw new IllegalArgumentException("Too many ticks in max delay");
+    }
+    int n = Integer.highestOneBit((int) needed);
+    if (n < needed) {
+      n *= 2;
+    }
+    mask = n - 1;
+    slots = (Timeout[]) new TimingWheel.Timeout[n];
+    for (int i = 0; i < n; i++) {
+      slots[i] = new Timeout(null, 0);
+    }
+  }
+
+  /**
+   * Adds an item that expires at deadline.
+   *
+   * @return A handle that can be used to cancel the item.
+   */
+  public Timeout add(T item, long deadline) {
+    long t = tickOf(deadline);
+    if (current == Long.MIN_VALUE) {
+      current = t;
+    }
+    // a deadline that has already passed expires at the next advance
+    t = Math.max(t, current);
+    if (t > current + mask) {
+      throw new IllegalArgumentException("Deadline " + deadline + " is more than one turn of the wheel away");
+    }
+    Timeout r = new Timeout(item, deadline);
+    r.linkBefore(slots[(int) (t & mask)]);
+    size++;
+    return r;
+  }
+
+  /**
+   * Expires every item whose tick ended at or before now.  This is a comparison and nothing more
+   * unless a tick boundary has been crossed.
+   */
+  public void advance(long now, Listener<T> listener) {
+    long target = tickOf(now);
+    if (current == Long.MIN_VALUE) {
+      current = target;
+      return;
+    }
+    if (target <= current) {
+      return;
+    }
+    // after a long gap, each slot only needs to be looked at once
+    long n = Math.min(target - current, mask + 1);
+    for (long i = 0; i < n; i++) {
+      Timeout head = slots[(int) ((current + i) & mask)];
+      while (head.next != head) {
+        Timeout t = head.next;
+        t.unlink();
+        listener.expired(t.item);
+      }
+    }
+    current = target;
+  }
+
+  /**
+   * Removes the item that is due to expire soonest, for instance to make room for a new one.
+   *
+   * @return The item or null if the wheel is empty.
+   */
+  public T removeEarliest() {
+    if (size == 0) {
+      return null;
+    }
+    for (int i = 0; i <= mask; i++) {
+      Timeout head = slots[(int) ((current + i) & mask)];
+      if (head.next != head) {
+        Timeout r = head.next;
+        r.unlink();
+        return r.item;
+      }
+    }
+    throw new IllegalStateException("Wheel has " + size + " items but no slot holds any");
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The earliest time at which {@link #advance} could expire anything.
+   */
+  public long nextAdvance() {
+    return current == Long.MIN_VALUE ? Long.MIN_VALUE : (current + 1) * tick;
+  }
+
+  private long tickOf(long time) {
+    // rounds down for negative times as well
+    return time >= 0 ? time / tick : -((tick - 1 - time) / tick);
+  }
+
+  public interface Listener<T> {
+    void expired(T item);
+  }
+
+  /**
+   * An item in the wheel.
+   */
+  public final class Timeout {
+    private final T item;
+    private final long deadline;
+    private Timeout prev = this;
+    private Timeout next = this;
+
+    private Timeout(T item, long deadline) {
+      this.item = item;
+      this.deadline = deadline;
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
+    /**
+     * Takes the item out of the wheel so that it never expires.
+     *
+     * @return False if the item had already expired or been cancelled.
+     */
+    public boolean cancel() {
+      if (next == this) {
+        return false;
+      }
+      unlink();
+      return true;
+    }
+
+    private void linkBefore(Timeout other) {
+      prev = other.prev;
+      next = other;
+      prev.next = this;
+      other.prev = this;
+    }
+
+    private void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = this;
+      next = this;
+      size--;
+    }
+  }
+}
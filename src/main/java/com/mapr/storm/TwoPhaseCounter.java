@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.tuple.Fields;
+
+/**
+ * Wires up counting in two stages so that a single hot key doesn't overload one task.
+ * <p/>
+ * Grouping a stream of (key, value) tuples on key sends every tuple for a key to the same counter.
+ * Instead, a first stage of partial counters receives the stream through a shuffle grouping so
+ * the load is spread over all of them no matter how the keys are distributed.  Each partial counter
+ * emits its counts every few hundred ms.  The final counters receive those counts grouped on key
+ * and add them up.  A hot key then costs the final stage at most one tuple per distinct value per
+ * partial counter per partial interval.
+ * <p/>
+ * That is as far as the load on a hot key is spread.  The final stage is still grouped on key, so
+ * all of a key's partial counts go to one final task, and a key with very many distinct values
+ * can still keep that task busy.  Adding final tasks doesn't help such a key.  Spreading it
+ * further would mean grouping the final stage on (key, value), at the cost of each key's counts
+ * being split over several tasks, or salting the key and adding a third stage that merges the
+ * salted counts.
+ * <p/>
+ * The final stage is an ordinary {@link CounterBolt} and can be configured in any of the usual
+ * ways before it is given to this class, except that it can't have a recovery log.  Its output is
+ * the output of the whole counter and its component id is the id given to this class.  The
+ * partial stage has the same id with "-partial" appended.
+ * <p/>
+ * The partial counters close their windows from a background thread as well as from execute.
+ * Otherwise a partial counter on a quiet stream would hold its last counts until its next tuple
+ * and the final stage would wait on it.
+ */
+public class TwoPhaseCounter {
+  private final String id;
+
+  private int partialTasks = 4;
+  private long partialInterval = 500;
+  private int partialMaxBufferedTuples = 100000;
+
+  private int finalTasks = 1;
+  private CounterBolt finalCounter = new CounterBolt();
+
+  public TwoPhaseCounter(String id) {
+    this.id = id;
+  }
+
+  /**
+   * Sets up the first stage.  A short interval keeps the latency added by the first stage low at
+   * the cost of more tuples for the final stage.
+   *
+   * @param tasks             How many partial counters to run.
+   * @param reportingInterval How often in ms each partial counter emits its counts.
+   * @param maxBufferedTuples How many tuples a partial counter holds before emitting early.
+   * @return This object so that configuration calls can be chained.
+   */
+  public TwoPhaseCounter withPartial(int tasks, long reportingInterval, int maxBufferedTuples) {
+    this.partialTasks = tasks;
+    this.partialInterval = reportingInterval;
+    this.partialMaxBufferedTuples = maxBufferedTuples;
+    return this;
+  }
+
+  /**
+   * Sets up the final stage.
+   *
+   * @param tasks   How many final counters to run.
+   * @param counter The final counter.  It will be switched to partial count input.
+   * @return This object so that configuration calls can be chained.
+   */
+  public TwoPhaseCounter withFinal(int tasks, CounterBolt counter) {
+    this.finalTasks = tasks;
+    this.finalCounter = counter;
+    return this;
+  }
+
+  /**
+   * Adds both stages to a topology.
+   *
+   * @param builder The topology being built.
+   * @param source  The component that emits the (key, value) tuples to count.
+   */
+  public void addTo(TopologyBuilder builder, String source) {
+    String partialId = id + "-partial";
+    CounterBolt partial = new CounterBolt(partialInterval, partialMaxBufferedTuples, true)
+        .withBackgroundFlush(Math.max(1, partialInterval / 5));
+    builder.setBolt(partialId, partial, partialTasks)
+        .shuffleGrouping(source);
+    builder.setBolt(id, finalCounter.withPartialCounts(), finalTasks)
+        .fieldsGrouping(partialId, new Fields("key"));
+  }
+
+  public String getId() {
+    return id;
+  }
+}
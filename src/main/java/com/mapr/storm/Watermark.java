@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks how far event time has progressed across several sources.  Each source is assumed to
+ * send events in roughly increasing time order so the progress of a source is the latest event
+ * time it has sent.  The watermark is the progress of the slowest source, so no source that
+ * has been seen so far is expected to send anything much older than the watermark.
+ * <p/>
+ * If the sources are known up front, the watermark stays at Long.MIN_VALUE until each of them has
+ * sent something.  Otherwise a slow source would find its first events already behind a
+ * watermark set by the sources that happened to start first.
+ * <p/>
+ * A source that stops sending holds the watermark back.
+ */
+public class Watermark implements Serializable {
+  private final Map<Integer, Long> progress = Maps.newHashMap();
+  private final Set<Integer> waiting;
+  private long current = Long.MIN_VALUE;
+
+  /**
+   * Creates a watermark over whichever sources turn up.
+   */
+  public Watermark() {
+    this(null);
+  }
+
+  /**
+   * Creates a watermark that is held back until every one of the expected sources has reported.
+   *
+   * @param sources The tasks expected to send events, or null if they aren't known.
+   */
+  public Watermark(Collection<Integer> sources) {
+    waiting = sources != null ? Sets.newHashSet(sources) : Sets.<Integer>newHashSet();
+  }
+
+  /**
+   * Records an event from a source.
+   *
+   * @param source The task that sent the event.
+   * @param time   The event time.
+   * @return The watermark after taking this event into account, or Long.MIN_VALUE while an
+   *         expected source has yet to report.
+   */
+  public long update(int source, long time) {
+    Long old = progress.get(source);
+    if (old == null) {
+      // a new source may hold the watermark back
+      progress.put(source, time);
+      current = progress.size() == 1 ? time : Math.min(current, time);
+      waiting.remove(source);
+    } else if (time > old) {
+      progress.put(source, time);
+      if (old == current) {
+        // this might have been the slowest source
+        long min = Long.MAX_VALUE;
+        for (Long t : progress.values()) {
+          min = Math.min(min, t);
+        }
+        current = min;
+      }
+    }
+    return get();
+  }
+
+  public long get() {
+    return waiting.isEmpty() ? current : Long.MIN_VALUE;
+  }
+}
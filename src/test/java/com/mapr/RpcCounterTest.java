@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr;
+
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.generated.Grouping;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.mapr.storm.Fake;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RpcCounterTest {
+  @Test
+  public void testQueries() {
+    List<Fake.AnchoredTuple> out = Lists.newArrayList();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+
+    RpcCounter rpc = new RpcCounter();
+    rpc.prepare(null, null, Fake.collector(out, acks, failures));
+    rpc.execute(Fake.tuple("key", "z3", "value", "mike", "count", 3L));
+    rpc.execute(Fake.tuple("key", "z3", "value", "mike", "count", 2L));
+    rpc.execute(Fake.tuple("key", "z3", "value", "ted", "count", 7L));
+    rpc.execute(Fake.tuple("key", "z3", "value", "ann", "count", 5L));
+    rpc.execute(Fake.tuple("key", "z1", "value", "mike", "count", 1L));
+
+    Tuple query = Fake.tuple("key", "z3", "query", "count z3 mike", "return-info", "info");
+    rpc.execute(query);
+    assertEquals(1, out.size());
+    assertEquals("[5, info]", out.get(0).getTuple().toString());
+    assertTrue(out.get(0).getAnchors().contains(query));
+    assertEquals(6, acks.size());
+
+    assertEquals("0", rpc.answer("count z3 bob 15m"));
+    assertEquals("ted\t7\nann\t5\n", rpc.answer("top z3 2"));
+    assertEquals("ted\t7\nann\t5\nmike\t5\n", rpc.answer("top z3 10 1d"));
+    assertEquals("", rpc.answer("top z9 10"));
+
+    assertTrue(rpc.answer("count z3").startsWith("error:"));
+    assertTrue(rpc.answer("top z3 ten").startsWith("error:"));
+    assertTrue(rpc.answer("top z3 10 1w").startsWith("error:"));
+    assertTrue(rpc.answer("count z3 mike 30d").startsWith("error:"));
+  }
+
+  @Test
+  public void testDeltas() {
+    List<Fake.AnchoredTuple> out = Lists.newArrayList();
+    RpcCounter rpc = new RpcCounter();
+    rpc.prepare(null, null, Fake.collector(out, Sets.<Tuple>newHashSet(), Sets.<Tuple>newHashSet()));
+    rpc.execute(Fake.tuple("key", "z3", "value", "mike", "delta", 4L, "task", 1, "epoch", 0L, "seq", 1L));
+    rpc.execute(Fake.tuple("key", "z3", "value", "mike", "delta", 3L, "task", 1, "epoch", 0L, "seq", 2L));
+    assertEquals("7", rpc.answer("count z3 mike"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSketchInput(@Mocked final TopologyContext context) {
+    new NonStrictExpectations() {{
+      context.getThisSources(); result = Collections.singletonMap(new GlobalStreamId("counter", "default"), new Grouping());
+      context.getComponentOutputFields("counter", "default"); result = new Fields("key", "sketch", "count");
+    }};
+    new RpcCounter().prepare(null, context, Fake.collector(Lists.<Fake.AnchoredTuple>newArrayList(), Sets.<Tuple>newHashSet(), Sets.<Tuple>newHashSet()));
+  }
+}
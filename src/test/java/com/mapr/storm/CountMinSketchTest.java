@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchTest {
+  @Test
+  public void testErrorBound() {
+    Random rand = new Random(1);
+    CountMinSketch sketch = CountMinSketch.forError(0.001, 0.01);
+    Multiset<String> exact = HashMultiset.create();
+
+    int n = 500000;
+    for (int i = 0; i < n; i++) {
+      String value = "v" + (int) Math.floor(Math.exp(rand.nextDouble() * Math.log(200000)));
+      sketch.add(value);
+      exact.add(value);
+    }
+    assertEquals(n, sketch.total());
+
+    int bad = 0;
+    for (Multiset.Entry<String> entry : exact.entrySet()) {
+      long estimate = sketch.estimate(entry.getElement());
+      assertTrue(estimate >= entry.getCount());
+      if (estimate - entry.getCount() > 0.001 * n) {
+        bad++;
+      }
+    }
+    assertTrue(bad <= 0.01 * exact.elementSet().size());
+  }
+
+  @Test
+  public void testMergeAndBytes() {
+    CountMinSketch a = CountMinSketch.forError(0.01, 0.05);
+    CountMinSketch b = CountMinSketch.forError(0.01, 0.05);
+    CountMinSketch both = CountMinSketch.forError(0.01, 0.05);
+    for (int i = 0; i < 1000; i++) {
+      String value = "x" + (i % 37);
+      if (i % 3 == 0) {
+        a.add(value);
+      } else {
+        b.add(value);
+      }
+      both.add(value);
+    }
+
+    CountMinSketch merged = CountMinSketch.fromBytes(a.toBytes());
+    merged.merge(CountMinSketch.fromBytes(b.toBytes()));
+    assertEquals(1000, merged.total());
+    for (int i = 0; i < 37; i++) {
+      assertEquals(both.estimate("x" + i), merged.estimate("x" + i));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeShapes() {
+    new CountMinSketch(3, 100).merge(new CountMinSketch(4, 100));
+  }
+}
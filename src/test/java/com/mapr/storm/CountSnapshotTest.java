@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CountSnapshotTest {
+  @Test
+  public void testPlus() {
+    PairCountTable<String, String> w1 = new PairCountTable<String, String>();
+    for (int i = 0; i < 1000; i++) {
+      w1.add("k" + i, "a", i + 1);
+      w1.add("k" + i, "b", 1);
+    }
+    CountSnapshot s1 = CountSnapshot.EMPTY.plus(w1, 10);
+    assertEquals(1000, s1.keys());
+    assertEquals(500500 + 1000, s1.total());
+    assertEquals(8, s1.get("k7", "a"));
+    assertEquals(0, s1.get("k7", "c"));
+    assertEquals(0, CountSnapshot.EMPTY.get("k7", "a"));
+
+    PairCountTable<String, String> w2 = new PairCountTable<String, String>();
+    w2.add("k7", "a", 2);
+    w2.add("k7", "c", 1);
+    w2.add("k8", "b", -1);
+    w2.add("k8", "a", -9);
+    w2.add("new", "x", 3);
+    CountSnapshot s2 = s1.plus(w2, 20);
+
+    // the old snapshot doesn't change
+    assertEquals(8, s1.get("k7", "a"));
+    assertEquals(0, s1.get("new", "x"));
+
+    assertEquals(10, s2.get("k7", "a"));
+    assertEquals(1, s2.get("k7", "c"));
+    assertEquals(3, s2.get("new", "x"));
+    assertEquals(0, s2.values("k8").size());
+    assertEquals(1000, s2.keys());
+    assertEquals(s1.total() - 4, s2.total());
+    assertEquals(20, s2.getTime());
+
+    // keys the window didn't touch are shared
+    assertSame(s1.values("k9"), s2.values("k9"));
+    assertNotSame(s1.values("k7"), s2.values("k7"));
+  }
+
+  @Test
+  public void testManyWindows() {
+    Random rand = new Random(3);
+    Map<String, Long> exact = Maps.newHashMap();
+    CountSnapshot snapshot = CountSnapshot.EMPTY;
+    for (int window = 0; window < 50; window++) {
+      PairCountTable<String, String> counts = new PairCountTable<String, String>();
+      for (int i = 0; i < 200; i++) {
+        String key = "k" + rand.nextInt(5000);
+        // some keys go back to zero and have to be removed
+        long n = exact.containsKey(key) && rand.nextInt(4) == 0 ? -exact.get(key) : 1;
+        counts.add(key, "v", n);
+        long total = (exact.containsKey(key) ? exact.get(key) : 0) + n;
+        if (total == 0) {
+          exact.remove(key);
+        } else {
+          exact.put(key, total);
+        }
+      }
+      snapshot = snapshot.plus(counts, window);
+    }
+    assertEquals(exact.size(), snapshot.keys());
+    for (int i = 0; i < 5000; i++) {
+      Long n = exact.get("k" + i);
+      assertEquals(n == null ? 0 : n, snapshot.get("k" + i, "v"));
+    }
+  }
+
+  @Test
+  public void testHashCollision() {
+    // these strings have the same hash code
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    PairCountTable<String, String> w1 = new PairCountTable<String, String>();
+    w1.add("Aa", "x", 1);
+    w1.add("BB", "x", 2);
+    CountSnapshot s1 = CountSnapshot.EMPTY.plus(w1, 0);
+    assertEquals(1, s1.get("Aa", "x"));
+    assertEquals(2, s1.get("BB", "x"));
+
+    PairCountTable<String, String> w2 = new PairCountTable<String, String>();
+    w2.add("Aa", "x", -1);
+    CountSnapshot s2 = s1.plus(w2, 1);
+    assertEquals(0, s2.get("Aa", "x"));
+    assertEquals(2, s2.get("BB", "x"));
+    assertEquals(1, s2.keys());
+    assertEquals(1, s1.get("Aa", "x"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testImmutable() {
+    PairCountTable<String, String> w = new PairCountTable<String, String>();
+    w.add("k", "a", 1);
+    CountSnapshot.EMPTY.plus(w, 0).values("k").put("b", 1L);
+  }
+}
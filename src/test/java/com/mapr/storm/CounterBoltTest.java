@@ -17,23 +17,668 @@
 
 package com.mapr.storm;
 
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.generated.Grouping;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.tuple.Tuple;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class CounterBoltTest {
+  // with this reporting interval, windows only close on cleanup whatever the clock says
+  private static final long FOREVER = Long.MAX_VALUE;
+
   @Test
   public void testShort() throws FileNotFoundException, InterruptedException {
-    CounterBolt cb = new CounterBolt(100, 5);
+    checkShortSequence(new CounterBolt(100, 5));
+  }
+
+  @Test
+  public void testCountOnArrival() throws FileNotFoundException, InterruptedException {
+    checkShortSequence(new CounterBolt(100, 5, true));
+  }
+
+  @Test
+  public void testRecovery(@Mocked final TopologyContext context) throws IOException {
+    new NonStrictExpectations() {{
+      context.getThisComponentId(); result = "counter";
+      context.getThisTaskId(); result = 3;
+    }};
+
+    File dir = Files.createTempDir();
+    try {
+      String base = dir.getPath() + "/log-";
+      List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+      Set<Tuple> acks = Sets.newHashSet();
+      Set<Tuple> failures = Sets.newHashSet();
+
+      CounterBolt cb = new CounterBolt(100000, 1000).withRecoveryLog(base);
+      cb.prepare(null, context, Fake.collector(out, acks, failures));
+      Tuple t1 = Fake.tuple("key", "t1", "value", "x1");
+      Tuple t2 = Fake.tuple("key", "t1", "value", "x2");
+      cb.execute(t1);
+      cb.execute(t2);
+      cb.execute(t1);
+
+      // tuples are acknowledged as soon as they are logged
+      assertEquals(2, acks.size());
+      assertEquals(0, out.size());
+      assertTrue(new File(dir, "log-counter-3").isDirectory());
+
+      // crash without cleanup and restart
+      cb = new CounterBolt(100000, 1000).withRecoveryLog(base);
+      cb.prepare(null, context, Fake.collector(out, acks, failures));
+      cb.execute(t2);
+      cb.cleanup();
+      assertEquals(4, cb.getTotal());
+      assertEquals(2, out.size());
+
+      // the snapshot written by cleanup means nothing is replayed next time
+      cb = new CounterBolt(100000, 1000).withRecoveryLog(base);
+      cb.prepare(null, context, Fake.collector(out, acks, failures));
+      cb.cleanup();
+      assertEquals(0, cb.getTotal());
+      assertEquals(0, failures.size());
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
 
-    final Fake.Clock clock = Fake.clock();
+  @Test
+  public void testGroupCommit(@Mocked final TopologyContext context) throws IOException, InterruptedException {
+    new NonStrictExpectations() {{
+      context.getThisComponentId(); result = "counter";
+      context.getThisTaskId(); result = 4;
+    }};
+
+    File dir = Files.createTempDir();
+    try {
+      List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+      // acknowledgements come from the commit thread
+      Set<Tuple> acks = Collections.synchronizedSet(Sets.<Tuple>newHashSet());
+      Set<Tuple> failures = Sets.newHashSet();
+
+      CounterBolt cb = new CounterBolt(100000, 1000).withRecoveryLog(dir.getPath() + "/").withGroupCommit(20, 100000);
+      cb.prepare(null, context, Fake.collector(out, acks, failures));
+      Tuple t1 = Fake.tuple("key", "t1", "value", "x1");
+      Tuple t2 = Fake.tuple("key", "t1", "value", "x2");
+      Tuple t3 = Fake.tuple("key", "t1", "value", "x3");
+
+      // the commit happens without any further input
+      cb.execute(t1);
+      cb.execute(t2);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (acks.size() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertEquals(2, acks.size());
+
+      // recording a window commits whatever is waiting
+      cb.execute(t3);
+      cb.cleanup();
+      assertEquals(3, acks.size());
+      assertEquals(3, cb.getTotal());
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testBackgroundFlush() throws InterruptedException {
+    final TestClock clock = new TestClock();
+    clock.set(1000);
+
+    // output and acknowledgements come from the flush thread
+    List<Fake.AnchoredTuple> out = Collections.synchronizedList(new ArrayList<Fake.AnchoredTuple>());
+    Set<Tuple> acks = Collections.synchronizedSet(Sets.<Tuple>newHashSet());
+    Set<Tuple> failures = Sets.newHashSet();
+
+    CounterBolt cb = new CounterBolt(100, 1000, true).withBackgroundFlush(5).withClock(clock);
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+    cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    Thread.sleep(20);
+    assertEquals(0, out.size());
+
+    // the window closes without any further input
+    clock.advance(100);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (acks.size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(2, acks.size());
+    assertEquals("[[t1, x1, 2]]", tuples(out).toString());
+
+    cb.execute(Fake.tuple("key", "t1", "value", "x2"));
+    cb.cleanup();
+    assertEquals(2, out.size());
+    assertEquals(3, cb.getTotal());
+  }
+
+  @Test
+  public void testMemoryLimit() {
+    CounterBolt cb = new CounterBolt(FOREVER, 100000).withMemoryLimit(1000);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    // each buffered tuple is estimated at a bit under 300 bytes so every fourth tuple flushes
+    for (int i = 0; i < 10; i++) {
+      cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    }
+    assertEquals("[[t1, x1, 4], [t1, x1, 4]]", tuples(out).toString());
+    assertEquals(8, acks.size());
+
+    cb.cleanup();
+    assertEquals("[t1, x1, 2]", tuples(out).get(2));
+    assertEquals(10, cb.getTotal());
+  }
+
+  @Test
+  public void testDeltas() {
+    final TestClock clock = new TestClock();
+    clock.set(1000);
+    CounterBolt cb = new CounterBolt(100, 1000, true).withDeltas(3, 200).withClock(clock);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    for (int i = 0; i < 3; i++) {
+      cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    }
+    cb.execute(Fake.tuple("key", "t1", "value", "x2"));
+
+    // only x1 has changed enough to be emitted
+    clock.advance(100);
+    cb.execute(Fake.tuple("key", "t1", "value", "x3"));
+    // every tuple carries the epoch of this task between the task id and the sequence number
+    long epoch = (Long) out.get(0).getTuple().get(4);
+    assertTrue(epoch > 0);
+    assertEquals(String.format("[[t1, x1, 3, 0, %d, 1]]", epoch), tuples(out).toString());
+    assertEquals(3, out.get(0).getAnchors().size());
+    assertEquals(3, acks.size());
+
+    // x2 and x3 are now old enough, the new change to x1 is not
+    clock.advance(200);
+    cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    assertEquals(Sets.newHashSet(String.format("[t1, x2, 1, 0, %d, 2]", epoch), String.format("[t1, x3, 1, 0, %d, 2]", epoch)), Sets.newHashSet(tuples(out).subList(1, 3)));
+    assertEquals(5, acks.size());
+
+    cb.cleanup();
+    assertEquals(String.format("[t1, x1, 1, 0, %d, 3]", epoch), tuples(out).get(3));
+    assertEquals(6, acks.size());
+
+    // after a restart the sequence starts over in a newer epoch
+    CounterBolt restarted = new CounterBolt(100, 1000, true).withDeltas(3, 200);
+    out.clear();
+    restarted.prepare(null, null, Fake.collector(out, acks, failures));
+    restarted.execute(Fake.tuple("key", "t1", "value", "x1"));
+    restarted.cleanup();
+    assertTrue((Long) out.get(0).getTuple().get(4) >= epoch);
+    assertEquals(1L, out.get(0).getTuple().get(5));
+  }
+
+  @Test
+  public void testSnapshots() {
+    CounterBolt cb = new CounterBolt(FOREVER, 3).withSnapshots();
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+    assertEquals(0, cb.getSnapshot().total());
+
+    cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    cb.execute(Fake.tuple("key", "t2", "value", "x2"));
+    // nothing is visible until a window is emitted
+    assertEquals(0, cb.getSnapshot().total());
+
+    // the fourth tuple fills the window
+    cb.execute(Fake.tuple("key", "t1", "value", "x2"));
+    CountSnapshot first = cb.getSnapshot();
+    assertEquals(4, first.total());
+    assertEquals(2, first.get("t1", "x1"));
+
+    cb.execute(Fake.tuple("key", "t1", "value", "x1"));
+    cb.cleanup();
+    CountSnapshot second = cb.getSnapshot();
+    assertEquals(3, second.get("t1", "x1"));
+    assertEquals(1, second.get("t1", "x2"));
+    assertEquals(5, second.total());
+    assertEquals(2, first.get("t1", "x1"));
+    assertSame(first.values("t2"), second.values("t2"));
+  }
+
+  @Test
+  public void testSpill(@Mocked final TopologyContext context) throws IOException {
+    new NonStrictExpectations() {{
+      context.getThisComponentId(); result = "counter";
+      context.getThisTaskId(); result = 3;
+    }};
+
+    File dir = Files.createTempDir();
+    try {
+      // each new pair is estimated at about 230 bytes so the table spills every fifth pair
+      String spillBase = dir.getPath() + "/spill-";
+      String logBase = dir.getPath() + "/log-";
+      File spillDir = new File(dir, "spill-counter-3");
+      // the tuple limit is far below the input since a spilling window holds no tuples
+      CounterBolt cb = new CounterBolt(FOREVER, 10, true).withRecoveryLog(logBase).withSpill(spillBase, 1000);
+
+      List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+      Set<Tuple> acks = Sets.newHashSet();
+      Set<Tuple> failures = Sets.newHashSet();
+      cb.prepare(null, context, Fake.collector(out, acks, failures));
+
+      for (int i = 0; i < 30; i++) {
+        cb.execute(Fake.tuple("key", "k" + (i % 3), "value", "v" + (i % 12)));
+      }
+      assertTrue(spillDir.list().length > 1);
+      assertEquals(0, out.size());
+      // tuples are acknowledged as they are logged rather than held until the window is emitted
+      assertEquals(30, acks.size());
+
+      // crash without cleanup.  The runs are thrown away and the window is counted again from the log
+      cb = new CounterBolt(FOREVER, 1000, true).withRecoveryLog(logBase).withSpill(spillBase, 1000);
+      cb.prepare(null, context, Fake.collector(out, acks, failures));
+      cb.cleanup();
+      assertEquals(0, spillDir.list().length);
+      Set<String> expected = Sets.newHashSet();
+      for (int i = 0; i < 12; i++) {
+        expected.add(String.format("[k%d, v%d, %d]", i % 3, i, i < 6 ? 3 : 2));
+      }
+      assertEquals(expected, Sets.newHashSet(tuples(out)));
+      assertEquals(12, out.size());
+      assertEquals(0, out.get(0).getAnchors().size());
+      assertEquals(0, failures.size());
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testSpillMergeFailure(@Mocked final TopologyContext context) throws IOException {
+    new NonStrictExpectations() {{
+      context.getThisComponentId(); result = "counter";
+      context.getThisTaskId(); result = 3;
+    }};
+
+    File dir = Files.createTempDir();
+    try {
+      String spillBase = dir.getPath() + "/spill-";
+      String logBase = dir.getPath() + "/log-";
+      File spillDir = new File(dir, "spill-counter-3");
+      CounterBolt cb = new CounterBolt(FOREVER, 1000, true).withRecoveryLog(logBase).withSpill(spillBase, 1000);
+      cb.prepare(null, context, new OutputCollector() {
+        @Override
+        public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+          throw new IllegalStateException("Emit failed");
+        }
+
+        @Override
+        public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void ack(Tuple input) {
+        }
+
+        @Override
+        public void fail(Tuple input) {
+        }
+
+        @Override
+        public void reportError(Throwable error) {
+        }
+      });
+      for (int i = 0; i < 30; i++) {
+        cb.execute(Fake.tuple("key", "k" + (i % 3), "value", "v" + (i % 12)));
+      }
+      int runs = spillDir.list().length;
+      try {
+        cb.cleanup();
+        fail("Merge should have failed");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      // the runs are kept and no snapshot was written so the window is counted again on restart
+      assertEquals(runs, spillDir.list().length);
+
+      List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+      cb = new CounterBolt(FOREVER, 1000, true).withRecoveryLog(logBase).withSpill(spillBase, 1000);
+      cb.prepare(null, context, Fake.collector(out, Sets.<Tuple>newHashSet(), Sets.<Tuple>newHashSet()));
+      cb.cleanup();
+      assertEquals(12, out.size());
+      assertEquals(0, spillDir.list().length);
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSpillWithoutLog() {
+    new CounterBolt().withSpill("/tmp/spill-", 1000).prepare(null, null, null);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSpillAboveMemoryLimit() {
+    new CounterBolt().withRecoveryLog("/tmp/log-").withMemoryLimit(1000).withSpill("/tmp/spill-", 1000).prepare(null, null, null);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSnapshotsWithSummary() {
+    new CounterBolt().withTopK(10, 0.01).withSnapshots().prepare(null, null, null);
+  }
+
+  @Test
+  public void testSlidingWindow() {
+    final TestClock clock = new TestClock();
+    clock.set(1200);
+    CounterBolt cb = new CounterBolt(100, 1000, true).withSlidingWindow(3, 1).withClock(clock);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    Tuple t1 = Fake.tuple("key", "t1", "value", "x1");
+    Tuple t2 = Fake.tuple("key", "t1", "value", "x2");
+
+    // the tuple that crosses a boundary is counted in the slice that is ending
+    cb.execute(t1);
+    cb.execute(t1);
+    clock.advance(100);
+    cb.execute(t1);
+    assertEquals("[[t1, x1, 3]]", tuples(out).toString());
+
+    // the second slice adds to the first
+    cb.execute(t2);
+    clock.advance(100);
+    cb.execute(t2);
+    assertEquals(Sets.newHashSet("[t1, x1, 3]", "[t1, x2, 2]"), Sets.newHashSet(tuples(out.subList(1, 3))));
+
+    // two slices later, the first slice has expired
+    clock.advance(200);
+    cb.execute(t1);
+    assertEquals(Sets.newHashSet("[t1, x1, 1]", "[t1, x2, 2]"), Sets.newHashSet(tuples(out.subList(3, 5))));
+
+    // and after another three slices, only the latest slice is left
+    clock.advance(300);
+    cb.execute(t1);
+    assertEquals("[[t1, x1, 1]]", tuples(out.subList(5, out.size())).toString());
+
+    assertEquals(7, cb.getTotal());
+  }
+
+  @Test
+  public void testEventTime() {
+    CounterBolt cb = new CounterBolt(100, 1000).withEventTime("time", 50);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    // two sources, each roughly in time order, interleaved arbitrarily
+    cb.execute(Fake.tupleFrom(1, "key", "t1", "value", "x1", "time", 10L));
+    cb.execute(Fake.tupleFrom(2, "key", "t1", "value", "x1", "time", 20L));
+    cb.execute(Fake.tupleFrom(1, "key", "t1", "value", "x2", "time", 120L));
+    cb.execute(Fake.tupleFrom(1, "key", "t1", "value", "x2", "time", 260L));
+
+    // source 2 holds the watermark back so nothing has closed
+    assertEquals(0, out.size());
+
+    // this is behind source 1 but still goes into the right window
+    cb.execute(Fake.tupleFrom(2, "key", "t1", "value", "x1", "time", 90L));
+    cb.execute(Fake.tupleFrom(2, "key", "t1", "value", "x2", "time", 160L));
+    assertEquals(1, out.size());
+    assertEquals("[t1, x1, 3, 0]", out.get(0).getTuple().toString());
+
+    cb.execute(Fake.tupleFrom(2, "key", "t1", "value", "x2", "time", 255L));
+    assertEquals(2, out.size());
+    assertEquals("[t1, x2, 2, 100]", out.get(1).getTuple().toString());
+
+    // window 0 has already been emitted so this is dropped
+    cb.execute(Fake.tupleFrom(1, "key", "t1", "value", "x1", "time", 50L));
+    assertEquals(1, cb.getLateEvents());
+
+    cb.cleanup();
+    assertEquals(3, out.size());
+    assertEquals("[t1, x2, 2, 200]", out.get(2).getTuple().toString());
+    assertEquals(7, cb.getTotal());
+    assertEquals(8, acks.size());
+  }
+
+  @Test
+  public void testEventTimeWaitsForSources(@Mocked final TopologyContext context) {
+    new NonStrictExpectations() {{
+      context.getThisSources(); result = Collections.singletonMap(new GlobalStreamId("spout", "default"), new Grouping());
+      context.getComponentTasks("spout"); result = Lists.newArrayList(1, 2);
+    }};
+    CounterBolt cb = new CounterBolt(100, 1000).withEventTime("time", 50);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, context, Fake.collector(out, acks, failures));
+
+    // source 1 is well ahead but source 2 hasn't been heard from yet
+    cb.execute(Fake.tupleFrom(1, "key", "t1", "value", "x1", "time", 10L));
+    cb.execute(Fake.tupleFrom(1, "key", "t1", "value", "x1", "time", 260L));
+    assertEquals(0, out.size());
+
+    // so its first tuple is still counted
+    cb.execute(Fake.tupleFrom(2, "key", "t1", "value", "x1", "time", 20L));
+    assertEquals(0, cb.getLateEvents());
+    cb.execute(Fake.tupleFrom(2, "key", "t1", "value", "x2", "time", 160L));
+    assertEquals("[[t1, x1, 2, 0]]", tuples(out).toString());
+
+    cb.cleanup();
+    assertEquals(4, cb.getTotal());
+  }
+
+  @Test
+  public void testTopK() {
+    CounterBolt cb = new CounterBolt(FOREVER, 100000, true).withTopK(2, 0.2);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    // x1 and x2 are heavy, the rest are seen once each and compete for the other three counters
+    for (int i = 0; i < 20; i++) {
+      cb.execute(Fake.tuple("key", "t1", "value", i % 2 == 0 ? "x1" : "x2"));
+      cb.execute(Fake.tuple("key", "t1", "value", "y" + i));
+    }
+    cb.cleanup();
+
+    assertEquals(2, out.size());
+    Set<String> keys = Sets.newHashSet();
+    for (Fake.AnchoredTuple t : out) {
+      List<Object> v = t.getTuple();
+      keys.add((String) v.get(1));
+      long count = (Long) v.get(2);
+      long error = (Long) v.get(3);
+      assertTrue(count - error <= 10 && count >= 10);
+      assertTrue(error <= 40 / 5);
+    }
+    assertEquals(Sets.newHashSet("x1", "x2"), keys);
+    assertEquals(40, cb.getTotal());
+    assertEquals(40, acks.size());
+  }
+
+  @Test
+  public void testSketch() {
+    CounterBolt cb = new CounterBolt(FOREVER, 100000, true).withSketch(0.01, 0.01);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    for (int i = 0; i < 84; i++) {
+      cb.execute(Fake.tuple("key", "z" + (i % 3), "value", "x" + (i % 7)));
+    }
+    cb.cleanup();
+
+    assertEquals(3, out.size());
+    CountMinSketch merged = null;
+    for (Fake.AnchoredTuple t : out) {
+      List<Object> v = t.getTuple();
+      CountMinSketch sketch = CountMinSketch.fromBytes((byte[]) v.get(1));
+      assertEquals(28L, v.get(2));
+      assertEquals(28, sketch.total());
+      if (merged == null) {
+        merged = sketch;
+      } else {
+        merged.merge(sketch);
+      }
+    }
+    // each value was seen 12 times across all keys and the error is at most 0.84
+    for (int i = 0; i < 7; i++) {
+      long estimate = merged.estimate("x" + i);
+      assertTrue(estimate >= 12 && estimate <= 13);
+    }
+    assertEquals(84, acks.size());
+  }
+
+  @Test
+  public void testDistinctCounts() {
+    CounterBolt cb = new CounterBolt(FOREVER, 100000, true).withDistinctCounts(10);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+    // z0 sees 5 distinct values and z1 sees 50
+    for (int i = 0; i < 100; i++) {
+      cb.execute(Fake.tuple("key", "z0", "value", "x" + (i % 5)));
+      cb.execute(Fake.tuple("key", "z1", "value", "y" + (i % 50)));
+    }
+    cb.cleanup();
+
+    assertEquals(2, out.size());
+    for (Fake.AnchoredTuple t : out) {
+      List<Object> v = t.getTuple();
+      long expected = v.get(0).equals("z0") ? 5 : 50;
+      long distinct = (Long) v.get(2);
+      assertTrue(Math.abs(distinct - expected) <= expected * 0.05);
+      assertEquals(distinct, HyperLogLog.fromBytes((byte[]) v.get(1)).cardinality());
+    }
+    assertEquals(200, acks.size());
+  }
+
+  @Test
+  public void testPartialCounts() {
+    // two partial counters share a hot key and a final counter merges what they emit
+    List<Fake.AnchoredTuple> partialOut = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    List<CounterBolt> partials = Lists.newArrayList();
+    for (int i = 0; i < 2; i++) {
+      CounterBolt partial = new CounterBolt(FOREVER, 100000, true);
+      partial.prepare(null, null, Fake.collector(partialOut, acks, failures));
+      partials.add(partial);
+    }
+    for (int i = 0; i < 30; i++) {
+      partials.get(i % 2).execute(Fake.tuple("key", "z1", "value", "x" + (i % 3)));
+    }
+    for (CounterBolt partial : partials) {
+      partial.cleanup();
+    }
+    assertEquals(6, partialOut.size());
+    assertEquals(30, acks.size());
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    CounterBolt counter = new CounterBolt(FOREVER, 100000, true).withPartialCounts();
+    counter.prepare(null, null, Fake.collector(out, acks, failures));
+    for (Fake.AnchoredTuple t : partialOut) {
+      List<Object> v = t.getTuple();
+      counter.execute(Fake.tuple("key", v.get(0), "value", v.get(1), "count", v.get(2)));
+    }
+    counter.cleanup();
+
+    assertEquals(Sets.newHashSet("[z1, x0, 10]", "[z1, x1, 10]", "[z1, x2, 10]"), Sets.newHashSet(tuples(out)));
+    assertEquals(30, counter.getTotal());
+  }
+
+  @Test
+  public void testAnchoring() {
+    for (CounterBolt.Anchoring anchoring : CounterBolt.Anchoring.values()) {
+      CounterBolt cb = new CounterBolt(FOREVER, 100000, true).withAnchoring(anchoring);
+      List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+      Set<Tuple> acks = Sets.newHashSet();
+      Set<Tuple> failures = Sets.newHashSet();
+      cb.prepare(null, null, Fake.collector(out, acks, failures));
+
+      List<Tuple> x1 = Lists.newArrayList();
+      List<Tuple> x2 = Lists.newArrayList();
+      for (int i = 0; i < 6; i++) {
+        Tuple t = Fake.tuple("key", "t1", "value", i % 3 == 0 ? "x1" : "x2");
+        (i % 3 == 0 ? x1 : x2).add(t);
+        cb.execute(t);
+      }
+      cb.cleanup();
+
+      assertEquals(2, out.size());
+      assertEquals(6, acks.size());
+      for (Fake.AnchoredTuple t : out) {
+        Set<Tuple> anchors = Sets.newHashSet(t.getAnchors());
+        switch (anchoring) {
+          case PAIR:
+            assertEquals(Sets.newHashSet(t.getTuple().get(1).equals("x1") ? x1 : x2), anchors);
+            break;
+          case WINDOW:
+            assertEquals(6, anchors.size());
+            break;
+          case NONE:
+            assertTrue(anchors.isEmpty());
+            break;
+        }
+      }
+    }
+  }
+
+  private List<String> tuples(List<Fake.AnchoredTuple> out) {
+    List<String> r = new ArrayList<String>();
+    for (Fake.AnchoredTuple t : out) {
+      r.add(t.getTuple().toString());
+    }
+    return r;
+  }
+
+  private void checkShortSequence(CounterBolt cb) {
+    final TestClock clock = new TestClock();
+    // window boundaries depend on absolute time so each sequence starts at the same point
+    clock.set(1235);
+    cb.withClock(clock);
 
     List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
     Set<Tuple> acks = Sets.newHashSet();
@@ -69,6 +714,11 @@ public class CounterBoltTest {
     // 3 and then 2 tuples went out, one due to buffer size, one due to time
     // the last one is still buffered
     assertEquals(5, out.size());
+    Set<String> firstWindows = Sets.newHashSet();
+    for (Fake.AnchoredTuple t : out) {
+      firstWindows.add(t.getTuple().toString());
+    }
+    assertTrue(firstWindows.contains("[t1, x1, 3]"));
 
     cb.execute(t7);
     cb.execute(t8);
@@ -81,4 +731,24 @@ public class CounterBoltTest {
 
     assertEquals(13, cb.getTotal());
   }
+
+  /**
+   * A clock that only moves when told to.  The background flush thread reads it too.
+   */
+  private static class TestClock implements Clock {
+    private volatile long time;
+
+    @Override
+    public long now() {
+      return time;
+    }
+
+    public void set(long t) {
+      time = t;
+    }
+
+    public void advance(long delta) {
+      time += delta;
+    }
+  }
 }
@@ -47,6 +47,33 @@ public class Fake {
    * @return The mocked tuple containing the specified data.
    */
   public static Tuple tuple(Object... data) {
+    return tupleFrom(0, data);
+  }
+
+  /**
+   * Mocks up a tuple that appears to have come from a particular task.
+   *
+   * @param sourceTask The task that the tuple will claim to have come from.
+   * @param data       The data that should be in the tuple in alternating key/value form.
+   * @return The mocked tuple containing the specified data.
+   */
+  public static Tuple tupleFrom(int sourceTask, Object... data) {
+    return tupleOn("spout", "default", sourceTask, data);
+  }
+
+  /**
+   * Mocks up a tuple that appears to have come from a particular component and stream.
+   *
+   * @param component The component that the tuple will claim to have come from.
+   * @param stream    The stream that the tuple will claim to have come on.
+   * @param data      The data that should be in the tuple in alternating key/value form.
+   * @return The mocked tuple containing the specified data.
+   */
+  public static Tuple tupleOn(String component, String stream, Object... data) {
+    return tupleOn(component, stream, 0, data);
+  }
+
+  private static Tuple tupleOn(String component, String stream, int sourceTask, Object... data) {
     final List<String> fields = Lists.newArrayList();
     final List<Object> values = Lists.newArrayList();
     for (int i = 0; i < data.length; i += 2) {
@@ -68,17 +95,38 @@ public class Fake {
       public Fields getFields() {
         return it.fields;
       }
+
+      @Mock
+      public int getSourceTask() {
+        return it.sourceTask;
+      }
+
+      @Mock
+      public String getSourceComponent() {
+        return it.component;
+      }
+
+      @Mock
+      public String getSourceStreamId() {
+        return it.stream;
+      }
     };
 
-    return new FakeTuple(fields, values);
+    return new FakeTuple(fields, values, sourceTask, component, stream);
   }
   
   public static class FakeTuple extends Tuple {
     final Fields fields;
+    final int sourceTask;
+    final String component;
+    final String stream;
 
-    public FakeTuple(List<String> fields, List<Object> values) {
-      super(null, values, 0, null);
+    public FakeTuple(List<String> fields, List<Object> values, int sourceTask, String component, String stream) {
+      super(null, values, sourceTask, stream);
       this.fields = new Fields(fields);
+      this.sourceTask = sourceTask;
+      this.component = component;
+      this.stream = stream;
     }
 
     @Override
@@ -201,5 +249,9 @@ public class Fake {
     public void advance(long delta) {
       time[0] += delta;
     }
+
+    public void set(long t) {
+      time[0] = t;
+    }
   }
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures throughput and commit latency of a {@link GroupCommitLog} as the batch size varies.
+ * Commit latency is the time from an append until the listener hears that the append is on disk,
+ * which is how long CounterBolt holds a tuple before acknowledging it.
+ * <p/>
+ * This isn't a JMH benchmark because the interesting number is the latency of individual events
+ * rather than the time for an operation.  Run the main method with the test classpath.  The
+ * results depend almost entirely on how fast the local disk can do an fsync.
+ */
+public class GroupCommitBenchmark {
+  private static final int EVENTS = 200000;
+  private static final long COMMIT_INTERVAL = 2;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    System.out.printf("%12s %12s %10s %10s %10s %10s\n", "commitBytes", "events/s", "batches", "p50 (ms)", "p99 (ms)", "max (ms)");
+    for (int commitBytes : new int[]{64, 1024, 16 * 1024, 256 * 1024, 4 * 1024 * 1024}) {
+      run(commitBytes);
+    }
+  }
+
+  private static void run(int commitBytes) throws IOException, InterruptedException {
+    File dir = Files.createTempDir();
+    try {
+      final long[] appended = new long[EVENTS];
+      final long[] latency = new long[EVENTS];
+      final AtomicInteger batches = new AtomicInteger();
+      final AtomicInteger committed = new AtomicInteger();
+
+      RecoveryLog log = new RecoveryLog(dir, 64 * 1024 * 1024);
+      GroupCommitLog<Integer> groupLog = new GroupCommitLog<Integer>(log, COMMIT_INTERVAL, commitBytes, new GroupCommitLog.Listener<Integer>() {
+        @Override
+        public void committed(List<Integer> tokens) {
+          long now = System.nanoTime();
+          for (Integer i : tokens) {
+            latency[i] = now - appended[i];
+          }
+          batches.incrementAndGet();
+          committed.addAndGet(tokens.size());
+        }
+      });
+
+      long t0 = System.nanoTime();
+      for (int i = 0; i < EVENTS; i++) {
+        appended[i] = System.nanoTime();
+        groupLog.append("z" + (i % 5), "value-" + (i % 1000), i);
+      }
+      while (committed.get() < EVENTS) {
+        Thread.sleep(1);
+      }
+      long t1 = System.nanoTime();
+      groupLog.close();
+      log.close();
+
+      Arrays.sort(latency);
+      System.out.printf("%12d %12.0f %10d %10.2f %10.2f %10.2f\n",
+          commitBytes, EVENTS / ((t1 - t0) / 1e9), batches.get(),
+          latency[EVENTS / 2] / 1e6, latency[(int) (EVENTS * 0.99)] / 1e6, latency[EVENTS - 1] / 1e6);
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
+}
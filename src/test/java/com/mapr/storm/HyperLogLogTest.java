@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest {
+  @Test
+  public void testAccuracy() {
+    for (int n : new int[]{10, 100, 1000, 10000, 100000, 1000000}) {
+      HyperLogLog hll = new HyperLogLog(12);
+      for (int i = 0; i < n; i++) {
+        // duplicates must not change the estimate
+        hll.add("v" + i);
+        hll.add("v" + i);
+      }
+      double error = Math.abs(hll.cardinality() - n) / (double) n;
+      assertTrue(String.format("n = %d, estimate = %d", n, hll.cardinality()), error < 0.05);
+      assertEquals(n < 512, hll.isSparse());
+    }
+  }
+
+  @Test
+  public void testSparseBytes() {
+    HyperLogLog hll = new HyperLogLog(12);
+    for (int i = 0; i < 20; i++) {
+      hll.add("x" + i);
+    }
+    byte[] bytes = hll.toBytes();
+    assertTrue(bytes.length < 100);
+
+    HyperLogLog copy = HyperLogLog.fromBytes(bytes);
+    assertTrue(copy.isSparse());
+    assertEquals(hll.cardinality(), copy.cardinality());
+  }
+
+  @Test
+  public void testUnion() {
+    HyperLogLog a = new HyperLogLog(12);
+    HyperLogLog b = new HyperLogLog(12);
+    HyperLogLog both = new HyperLogLog(12);
+    for (int i = 0; i < 30000; i++) {
+      // a gets 0..19999 and b gets 10000..29999
+      if (i < 20000) {
+        a.add("v" + i);
+      }
+      if (i >= 10000) {
+        b.add("v" + i);
+      }
+      both.add("v" + i);
+    }
+    HyperLogLog small = new HyperLogLog(12);
+    small.add("v1");
+
+    HyperLogLog merged = HyperLogLog.fromBytes(a.toBytes());
+    merged.merge(HyperLogLog.fromBytes(b.toBytes()));
+    merged.merge(small);
+    assertFalse(merged.isSparse());
+    assertEquals(both.cardinality(), merged.cardinality());
+
+    // merging a dense sketch into a sparse one switches it over
+    small.merge(a);
+    assertEquals(a.cardinality(), small.cardinality());
+  }
+}
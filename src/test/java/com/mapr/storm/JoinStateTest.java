@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class JoinStateTest {
+  @Test
+  public void testMatchAndExpire() {
+    JoinState<String, String> join = new JoinState<String, String>(4, 1000, 100);
+    assertEquals(4, join.getShards());
+    Recorder out = new Recorder();
+
+    join.offer("a", "a1", 0, out);
+    join.offer("b", "b1", 0, out);
+    join.offer("a", "a2", 500, out);
+    assertEquals("[a: a1 + a2]", out.matches.toString());
+    assertEquals(1, join.size());
+
+    // b expires even though nothing arrives in its shard
+    join.expire(1100, out);
+    assertEquals("[b1]", out.expired.toString());
+    assertEquals(0, join.size());
+
+    join.offer("b", "b2", 1100, out);
+    assertEquals(1, out.matches.size());
+    assertEquals(1, join.size());
+  }
+
+  @Test
+  public void testMultiMatch() {
+    JoinState<String, String> join = new JoinState<String, String>(1, 1000, 100, 2);
+    Recorder out = new Recorder();
+
+    join.offer("a", "a1", 0, out);
+    join.offer("a", "a2", 100, out);
+    join.offer("b", "b1", 100, out);
+    assertEquals("[a: a1 + a2]", out.matches.toString());
+
+    // a3 matches both and pushes out a1 to stay within two per key
+    join.offer("a", "a3", 200, out);
+    assertEquals("[a: a1 + a2, a: a1 + a3, a: a2 + a3]", out.matches.toString());
+    assertEquals("[a1]", out.expired.toString());
+    assertEquals(3, join.size());
+
+    // values that have matched still expire
+    join.expire(1150, out);
+    assertEquals("[a1, a2, b1]", out.expired.toString());
+    join.offer("a", "a4", 1150, out);
+    assertEquals("a: a3 + a4", out.matches.get(3));
+    assertEquals(2, join.size());
+  }
+
+  @Test
+  public void testSides() {
+    JoinState<String, String> join = new JoinState<String, String>(2, 1000, 100);
+    Recorder out = new Recorder();
+
+    // values from the same side never join and the newer one takes over
+    join.offer("a", JoinState.LEFT, "left1", 0, out);
+    join.offer("a", JoinState.LEFT, "left2", 0, out);
+    join.offer("c", JoinState.LEFT, "left3", 0, out);
+    assertEquals(0, out.matches.size());
+    assertEquals("[left1]", out.expired.toString());
+
+    // the left value always comes first
+    join.offer("a", JoinState.RIGHT, "right1", 10, out);
+    join.offer("b", JoinState.RIGHT, "right2", 10, out);
+    join.offer("b", JoinState.LEFT, "left4", 20, out);
+    assertEquals("[a: left2 + right1, b: left4 + right2]", out.matches.toString());
+    assertEquals(1, join.size());
+
+    join.expire(2000, out);
+    assertEquals("[left1, left3]", out.expired.toString());
+  }
+
+  @Test
+  public void testMultiMatchWithSides() {
+    JoinState<String, String> join = new JoinState<String, String>(1, 1000, 100, 5);
+    Recorder out = new Recorder();
+
+    join.offer("a", JoinState.LEFT, "impression", 0, out);
+    join.offer("a", JoinState.RIGHT, "click1", 10, out);
+    join.offer("a", JoinState.RIGHT, "click2", 20, out);
+    assertEquals("[a: impression + click1, a: impression + click2]", out.matches.toString());
+
+    join.expire(2000, out);
+    assertEquals("[impression, click1, click2]", out.expired.toString());
+    assertEquals(0, join.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadSide() {
+    new JoinState<String, String>(1, 1000, 100).offer("a", 2, "x", 0, new Recorder());
+  }
+
+  @Test
+  public void testThreads() throws InterruptedException {
+    final JoinState<Integer, Integer> join = new JoinState<Integer, Integer>(16, 1000000, 1000000);
+    final AtomicInteger matches = new AtomicInteger();
+    final AtomicInteger expired = new AtomicInteger();
+    final JoinState.Listener<Integer, Integer> listener = new JoinState.Listener<Integer, Integer>() {
+      @Override
+      public void matched(Integer key, Integer pending, Integer value) {
+        matches.incrementAndGet();
+      }
+
+      @Override
+      public void expired(Integer key, Integer value) {
+        expired.incrementAndGet();
+      }
+    };
+
+    // each thread has its own keys and offers each of them twice
+    List<Thread> threads = Lists.newArrayList();
+    for (int t = 0; t < 8; t++) {
+      final int base = t * 100000;
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            join.offer(base + i, i, 0, listener);
+            join.offer(base + i, -i, 0, listener);
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(8 * 20000, matches.get());
+    assertEquals(0, expired.get());
+    assertEquals(0, join.size());
+  }
+
+  private static class Recorder implements JoinState.Listener<String, String> {
+    private final List<String> matches = Lists.newArrayList();
+    private final List<String> expired = Lists.newArrayList();
+
+    @Override
+    public void matched(String key, String pending, String value) {
+      matches.add(key + ": " + pending + " + " + value);
+    }
+
+    @Override
+    public void expired(String key, String value) {
+      expired.add(value);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares counting a window of composite keys with a Guava multiset, as CounterBolt used to do,
+ * against counting (key, value) pairs with a PairCountTable.  Each operation counts and then reads
+ * back one window containing every distinct key at least once.
+ * <p/>
+ * Run with the test classpath, adding "-prof gc" to the arguments to see allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms6g", "-Xmx6g"})
+public class PairCountTableBenchmark {
+  private static final int MIN_EVENTS = 1000000;
+
+  @Param({"1000", "100000", "10000000"})
+  public int distinctKeys;
+
+  private String[] events;
+
+  // the same events split into the separate key and value fields that a tuple would have
+  private String[] eventKeys;
+  private String[] eventValues;
+
+  @Setup(Level.Trial)
+  public void generate() {
+    String[] keys = new String[distinctKeys];
+    String[] keyParts = new String[distinctKeys];
+    String[] valueParts = new String[distinctKeys];
+    for (int i = 0; i < distinctKeys; i++) {
+      keyParts[i] = "z" + (i % 5);
+      valueParts[i] = Integer.toHexString(i);
+      keys[i] = keyParts[i] + "\t" + valueParts[i];
+    }
+
+    int[] order = new int[Math.max(distinctKeys, MIN_EVENTS)];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i % distinctKeys;
+    }
+    Random rand = new Random(1);
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = rand.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+
+    events = new String[order.length];
+    eventKeys = new String[order.length];
+    eventValues = new String[order.length];
+    for (int i = 0; i < order.length; i++) {
+      events[i] = keys[order[i]];
+      eventKeys[i] = keyParts[order[i]];
+      eventValues[i] = valueParts[order[i]];
+    }
+  }
+
+  @Benchmark
+  public long multiset() {
+    Multiset<String> counts = HashMultiset.create();
+    for (String event : events) {
+      counts.add(event);
+    }
+    long total = 0;
+    for (String key : counts.elementSet()) {
+      total += counts.count(key);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long pairTable() {
+    PairCountTable<String, String> counts = new PairCountTable<String, String>();
+    for (int i = 0; i < eventKeys.length; i++) {
+      counts.increment(eventKeys[i], eventValues[i]);
+    }
+    long total = 0;
+    PairCountTable.Cursor<String, String> cursor = counts.cursor();
+    while (cursor.next()) {
+      total += cursor.count();
+    }
+    return total;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(PairCountTableBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
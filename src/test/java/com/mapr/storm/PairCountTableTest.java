@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PairCountTableTest {
+  @Test
+  public void testPairs() {
+    PairCountTable<String, String> table = new PairCountTable<String, String>(1);
+    for (int i = 0; i < 1000; i++) {
+      table.increment("a" + (i % 10), "b" + (i % 7));
+    }
+    // (a, b) and (b, a) are different pairs
+    table.increment("x", "y");
+    table.add("y", "x", 2);
+
+    assertEquals(72, table.size());
+    assertEquals(1, table.get("x", "y"));
+    assertEquals(2, table.get("y", "x"));
+    assertEquals(0, table.get("a1", "x"));
+
+    long total = 0;
+    PairCountTable.Cursor<String, String> cursor = table.cursor();
+    while (cursor.next()) {
+      assertEquals(table.get(cursor.first(), cursor.second()), cursor.count());
+      total += cursor.count();
+    }
+    assertEquals(1003, total);
+  }
+
+  @Test
+  public void testPairRemoval() {
+    Random rand = new Random(2);
+    PairCountTable<String, String> table = new PairCountTable<String, String>();
+    Map<String, Long> reference = Maps.newHashMap();
+    for (int i = 0; i < 200000; i++) {
+      String a = "a" + rand.nextInt(30);
+      String b = "b" + rand.nextInt(30);
+      Long old = reference.get(a + "/" + b);
+      long delta = (old != null && rand.nextBoolean()) ? -old : 1;
+      long n = table.add(a, b, delta);
+      if (n == 0) {
+        reference.remove(a + "/" + b);
+      } else {
+        reference.put(a + "/" + b, n);
+      }
+    }
+
+    assertEquals(reference.size(), table.size());
+    long total = 0;
+    for (String k : reference.keySet()) {
+      String[] parts = k.split("/");
+      assertEquals((long) reference.get(k), table.get(parts[0], parts[1]));
+      total += reference.get(k);
+    }
+    assertEquals(total, table.total());
+
+    PairCountTable<String, String> copy = new PairCountTable<String, String>();
+    copy.addAll(table);
+    copy.subtractAll(table);
+    assertTrue(copy.isEmpty());
+    assertEquals(0, copy.total());
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecoveryLogTest {
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteRecursively(dir);
+  }
+
+  @Test
+  public void testSegmentsAndSnapshots() throws IOException {
+    assertNull(Snapshot.read(dir));
+
+    RecoveryLog log = new RecoveryLog(dir, 100);
+    for (int i = 0; i < 20; i++) {
+      log.append("z" + (i % 3), "value-" + i);
+    }
+    RecoveryLog.Position middle = log.position();
+    for (int i = 20; i < 30; i++) {
+      log.append("z" + (i % 3), "value-" + i);
+    }
+    log.sync();
+
+    // 100 byte segments hold only a few records each
+    int segments = dir.list().length;
+    assertTrue(segments > 5);
+
+    Snapshot.write(dir, middle);
+    assertEquals(middle, Snapshot.read(dir));
+
+    assertEquals(10, replay(Snapshot.read(dir)).size());
+    List<String> all = replay(null);
+    assertEquals(30, all.size());
+    assertEquals("z2\tvalue-29", all.get(29));
+
+    // old segments go away but replay from the snapshot is unaffected
+    log.deleteBefore(middle);
+    assertTrue(dir.list().length < segments);
+    assertTrue(replay(null).size() < 30);
+    assertEquals(10, replay(Snapshot.read(dir)).size());
+    log.close();
+  }
+
+  @Test
+  public void testTornWrite() throws IOException {
+    RecoveryLog log = new RecoveryLog(dir, 1000000);
+    for (int i = 0; i < 10; i++) {
+      log.append("key", "value-" + i);
+    }
+    RecoveryLog.Position end = log.position();
+    log.close();
+
+    // chop the last record in half
+    RandomAccessFile f = new RandomAccessFile(new File(dir, dir.list()[0]), "rw");
+    f.setLength(end.getOffset() - 5);
+    f.close();
+    assertEquals(9, replay(null).size());
+
+    // reopening starts a new segment rather than appending after the damage
+    log = new RecoveryLog(dir, 1000000);
+    log.append("key", "value-10");
+    log.close();
+    List<String> events = replay(null);
+    assertEquals(10, events.size());
+    assertEquals("key\tvalue-10", events.get(9));
+  }
+
+  @Test
+  public void testCommitted() throws IOException {
+    RecoveryLog log = new RecoveryLog(dir, 100);
+    for (int i = 0; i < 10; i++) {
+      log.append("key", "value-" + i);
+    }
+    log.commit(log.position());
+    // never forced or acknowledged, so the spout will send these again
+    for (int i = 10; i < 20; i++) {
+      log.append("key", "value-" + i);
+    }
+    log.sync();
+    log.close();
+    assertEquals(10, replay(null).size());
+
+    // reopening cuts off the uncommitted tail and forgets the commit
+    log = new RecoveryLog(dir, 100);
+    log.append("key", "value-10");
+    log.close();
+    List<String> events = replay(null);
+    assertEquals(11, events.size());
+    assertEquals("key\tvalue-10", events.get(10));
+  }
+
+  private List<String> replay(RecoveryLog.Position start) throws IOException {
+    final List<String> events = Lists.newArrayList();
+    RecoveryLog.replay(dir, start, new RecoveryLog.Listener() {
+      @Override
+      public void event(String key, String value) {
+        events.add(key + "\t" + value);
+      }
+    });
+    return events;
+  }
+}
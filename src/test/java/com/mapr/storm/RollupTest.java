@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RollupTest {
+  private final Rollup.Level fine = new Rollup.Level("fine", 10, 6);
+  private final Rollup.Level coarse = new Rollup.Level("coarse", 60, 4);
+
+  @Test
+  public void testCascade() {
+    Rollup r = new Rollup(fine, coarse);
+    Recorder out = new Recorder();
+
+    r.advance(960, out);
+    for (long t = 960; t < 1020; t++) {
+      r.advance(t, out);
+      r.add("a", "x", 1);
+      if (t % 2 == 0) {
+        r.add("b", "y", 2);
+      }
+    }
+    // six fine slots have closed, the last one at the same time as the coarse slot
+    r.advance(1020, out);
+    assertEquals(14, out.closed.size());
+    assertEquals(12, count(out, "fine"));
+    assertEquals(10, find(out, "fine a x 1010"));
+    assertEquals(10, find(out, "fine b y 1010"));
+    assertEquals(2, count(out, "coarse"));
+    assertEquals(60, find(out, "coarse a x 960"));
+    assertEquals(60, find(out, "coarse b y 960"));
+
+    // the ring holds the closed slots at each level
+    assertEquals(0, r.get("a", "x", 0, 0));
+    assertEquals(10, r.get("a", "x", 0, 1));
+    assertEquals(10, r.get("b", "y", 0, 6));
+    assertEquals(60, r.get("a", "x", 1, 1));
+    assertEquals(0, r.get("a", "x", 1, 2));
+    assertEquals(0, r.get("c", "z", 1, 1));
+  }
+
+  @Test
+  public void testIdleGap() {
+    Rollup r = new Rollup(fine, coarse);
+    Recorder out = new Recorder();
+
+    r.advance(0, out);
+    r.add("a", "x", 3);
+    r.advance(5, out);
+    r.add("a", "x", 4);
+    // a long gap closes the pending slots and then skips ahead
+    r.advance(10000, out);
+    assertEquals(10000, r.getStart(0));
+    assertEquals(9960, r.getStart(1));
+    assertEquals(2, out.closed.size());
+    assertEquals(7, find(out, "fine a x 0"));
+    assertEquals(7, find(out, "coarse a x 0"));
+
+    // the skipped slots don't hold stale counts
+    for (int i = 1; i <= 6; i++) {
+      assertEquals(0, r.get("a", "x", 0, i));
+    }
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(0, r.get("a", "x", 1, i));
+    }
+
+    // pairs with nothing left are dropped
+    assertEquals(0, r.size());
+  }
+
+  @Test
+  public void testQuietPairsDropped() {
+    Rollup r = new Rollup(fine, coarse);
+    Recorder out = new Recorder();
+
+    r.advance(0, out);
+    r.add("a", "x", 1);
+    for (long t = 0; t < 400; t += 5) {
+      r.advance(t, out);
+      // b keeps the clock from skipping ahead
+      r.add("b", "y", 1);
+      if (t == 290) {
+        // a is still readable in the coarse ring
+        assertEquals(2, r.size());
+        assertEquals(1, r.get("a", "x", 1, 4));
+      }
+    }
+    // a's only coarse count has left the ring so a is gone without waiting for anything else
+    assertEquals(1, r.size());
+    assertEquals(0, r.get("a", "x", 1, 4));
+    assertEquals(1, r.values("b").size());
+
+    // a pair that comes back starts from scratch
+    r.add("a", "x", 5);
+    r.advance(400, out);
+    assertEquals(5, r.get("a", "x", 0, 1));
+    assertEquals(0, r.get("a", "x", 0, 2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadLevels() {
+    new Rollup(new Rollup.Level("a", 10, 6), new Rollup.Level("b", 25, 4));
+  }
+
+  private int count(Recorder out, String level) {
+    int n = 0;
+    for (String s : out.closed) {
+      if (s.startsWith(level + " ")) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private long find(Recorder out, String prefix) {
+    for (String s : out.closed) {
+      if (s.startsWith(prefix + " ")) {
+        return Long.parseLong(s.substring(prefix.length() + 1));
+      }
+    }
+    return -1;
+  }
+
+  private static class Recorder implements Rollup.Listener {
+    private final List<String> closed = Lists.newArrayList();
+
+    @Override
+    public void closed(String key, String value, Rollup.Level level, long start, long count) {
+      closed.add(String.format("%s %s %s %d %d", level.getName(), key, value, start, count));
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingTest {
+  @Test
+  public void testSkewedStream() {
+    Random rand = new Random(1);
+    SpaceSaving<String, String> summary = new SpaceSaving<String, String>(SpaceSaving.capacityFor(10, 0.01));
+    PairCountTable<String, String> exact = new PairCountTable<String, String>();
+
+    // roughly Zipf distributed over 10,000 values
+    int n = 200000;
+    for (int i = 0; i < n; i++) {
+      String value = "v" + (int) Math.floor(Math.exp(rand.nextDouble() * Math.log(10000)));
+      summary.add("k", value);
+      exact.increment("k", value);
+    }
+    assertEquals(n, summary.total());
+    assertEquals(100, summary.size());
+    assertTrue(summary.maxUncountedCount() <= n / 100);
+
+    List<SpaceSaving.Counter<String, String>> top = summary.top(10);
+    assertEquals(10, top.size());
+    long previous = Long.MAX_VALUE;
+    for (SpaceSaving.Counter<String, String> c : top) {
+      long trueCount = exact.get(c.getFirst(), c.getSecond());
+      assertTrue(c.getCount() <= previous);
+      assertTrue(c.getGuaranteedCount() <= trueCount);
+      assertTrue(trueCount <= c.getCount());
+      assertTrue(c.getError() <= n / 100);
+      previous = c.getCount();
+    }
+
+    // the most frequent values are small numbers
+    assertEquals("v1", top.get(0).getSecond());
+  }
+
+  @Test
+  public void testExactWhileSmall() {
+    SpaceSaving<String, Integer> summary = new SpaceSaving<String, Integer>(5);
+    for (int i = 0; i < 5; i++) {
+      summary.add("a", i, i + 1);
+    }
+    summary.add("a", 0, 10);
+    assertEquals(2, summary.maxUncountedCount());
+
+    List<SpaceSaving.Counter<String, Integer>> top = summary.top(2);
+    assertEquals(0, (int) top.get(0).getSecond());
+    assertEquals(11, top.get(0).getCount());
+    assertEquals(0, top.get(0).getError());
+    assertEquals(4, (int) top.get(1).getSecond());
+
+    // a new value takes over the smallest counter
+    summary.add("b", 0);
+    assertEquals(5, summary.size());
+    assertEquals(3, summary.maxUncountedCount());
+  }
+
+  @Test
+  public void testLargeCountFirst() {
+    SpaceSaving<String, String> summary = new SpaceSaving<String, String>(2);
+    for (int i = 0; i < 5; i++) {
+      summary.add("k", "a");
+    }
+    summary.add("k", "b");
+    assertEquals(1, summary.maxUncountedCount());
+
+    // c has to take over b, not the heavy hitter a
+    summary.add("k", "c");
+    List<SpaceSaving.Counter<String, String>> top = summary.top(2);
+    assertEquals("a", top.get(0).getSecond());
+    assertEquals(5, top.get(0).getCount());
+    assertEquals(0, top.get(0).getError());
+    assertEquals("c", top.get(1).getSecond());
+    assertEquals(2, top.get(1).getCount());
+    assertEquals(1, top.get(1).getError());
+    assertEquals(2, summary.maxUncountedCount());
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpilledCountsTest {
+  @Test
+  public void testMerge() throws IOException {
+    File dir = Files.createTempDir();
+    try {
+      Random rand = new Random(1);
+      PairCountTable<String, String> all = new PairCountTable<String, String>();
+      PairCountTable<String, String> current = new PairCountTable<String, String>();
+      SpilledCounts spilled = new SpilledCounts(dir);
+
+      for (int i = 0; i < 20000; i++) {
+        String key = "k" + rand.nextInt(50);
+        String value = "v" + rand.nextInt(100);
+        all.increment(key, value);
+        current.increment(key, value);
+        if (current.size() > 500) {
+          spilled.spill(current);
+          current.clear();
+        }
+      }
+      // pairs that cancel out across runs don't come out at all
+      current.add("k0", "gone", 5);
+      spilled.spill(current);
+      current.clear();
+      current.add("k0", "gone", -5);
+      assertEquals(dir.list().length, spilled.runs());
+
+      final List<String> out = Lists.newArrayList();
+      final PairCountTable<String, String> merged = new PairCountTable<String, String>();
+      spilled.merge(current, new SpilledCounts.Listener() {
+        @Override
+        public void pair(String key, String value, long count) {
+          out.add(key + " " + value);
+          merged.add(key, value, count);
+        }
+      });
+
+      // each pair comes out once, in order
+      assertEquals(all.size(), out.size());
+      assertEquals(all.size(), merged.size());
+      for (int i = 1; i < out.size(); i++) {
+        assertEquals(-1, Integer.signum(out.get(i - 1).compareTo(out.get(i))));
+      }
+      PairCountTable.Cursor<String, String> entries = all.cursor();
+      while (entries.next()) {
+        assertEquals(entries.count(), merged.get(entries.first(), entries.second()));
+      }
+
+      spilled.delete();
+      assertEquals(0, dir.list().length);
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testLongStrings() throws IOException {
+    File dir = Files.createTempDir();
+    try {
+      // writeUTF would fail on a value this long
+      String value = Strings.repeat("\u00e9x", 40000);
+      PairCountTable<String, String> counts = new PairCountTable<String, String>();
+      counts.add("k", value, 3);
+      SpilledCounts spilled = new SpilledCounts(dir);
+      spilled.spill(counts);
+
+      final List<String> out = Lists.newArrayList();
+      spilled.merge(new PairCountTable<String, String>(), new SpilledCounts.Listener() {
+        @Override
+        public void pair(String key, String v, long count) {
+          out.add(key + " " + v + " " + count);
+        }
+      });
+      assertEquals(Lists.newArrayList("k " + value + " 3"), out);
+      spilled.delete();
+    } finally {
+      Files.deleteRecursively(dir);
+    }
+  }
+}
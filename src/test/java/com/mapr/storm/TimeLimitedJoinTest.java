@@ -116,4 +116,149 @@ public class TimeLimitedJoinTest {
     assertEquals(0, failures.size());
   }
 
+  @Test
+  public void testRetentionLimit() {
+    TimeLimitedJoin tlj = new TimeLimitedJoin(1000, 2, new Fields("key1"));
+    Fake.clock().set(5000);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    tlj.prepare(null, null, Fake.collector(out, acks, failures));
+
+    Tuple t1 = Fake.tuple("key1", "a", "v", "1");
+    Tuple t2 = Fake.tuple("key1", "b", "v", "2");
+    Tuple t3 = Fake.tuple("key1", "b", "v", "3");
+    Tuple t4 = Fake.tuple("key1", "c", "v", "4");
+    Tuple t5 = Fake.tuple("key1", "d", "v", "5");
+    Tuple t6 = Fake.tuple("key1", "a", "v", "6");
+
+    // the match between t2 and t3 frees its room straight away
+    tlj.execute(t1);
+    tlj.execute(t2);
+    tlj.execute(t3);
+    tlj.execute(t4);
+    assertEquals(1, out.size());
+    assertEquals(2, acks.size());
+
+    // t1 is the oldest so it makes room for t6 and never gets to match it
+    tlj.execute(t5);
+    tlj.execute(t6);
+    assertEquals(1, out.size());
+    assertTrue(acks.contains(t1));
+    assertEquals(0, failures.size());
+  }
+
+  @Test
+  public void testMultiMatch() {
+    TimeLimitedJoin tlj = new TimeLimitedJoin(1000, 100, new Fields("key1")).withMultiMatch(10);
+    Fake.Clock clock = Fake.clock();
+    clock.set(5000);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    tlj.prepare(null, null, Fake.collector(out, acks, failures));
+
+    // one impression joins both clicks
+    Tuple impression = Fake.tuple("key1", "a", "v", "impression");
+    Tuple click1 = Fake.tuple("key1", "a", "v", "click1");
+    Tuple click2 = Fake.tuple("key1", "a", "v", "click2");
+    tlj.execute(impression);
+    tlj.execute(click1);
+    tlj.execute(click2);
+    assertEquals(3, out.size());
+    assertEquals("[[a], [key1=a, v=impression], [key1=a, v=click2]]", out.get(1).getTuple().toString());
+    assertEquals(0, acks.size());
+
+    // everything is acknowledged once it expires
+    clock.advance(2000);
+    tlj.execute(Fake.tuple("key1", "b", "v", "other"));
+    assertTrue(acks.containsAll(ImmutableList.of(impression, click1, click2)));
+    assertEquals(0, failures.size());
+  }
+
+  @Test
+  public void testSides() {
+    TimeLimitedJoin tlj = new TimeLimitedJoin(1000, 100, "impressions", new Fields("id"), "clicks", new Fields("impression"));
+    Fake.clock().set(5000);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    Set<Tuple> acks = Sets.newHashSet();
+    Set<Tuple> failures = Sets.newHashSet();
+    tlj.prepare(null, null, Fake.collector(out, acks, failures));
+
+    // sides are recognized by stream id or by component id
+    Tuple impression = Fake.tupleOn("ads", "impressions", "id", "a", "v", "impression");
+    Tuple duplicate = Fake.tupleOn("ads", "impressions", "id", "a", "v", "duplicate");
+    Tuple click = Fake.tupleOn("clicks", "default", "impression", "a", "v", "click");
+    Tuple stray = Fake.tupleOn("other", "default", "id", "a", "v", "stray");
+
+    // two impressions with the same id don't join each other.  The newer one waits instead
+    tlj.execute(duplicate);
+    tlj.execute(impression);
+    assertEquals(0, out.size());
+    assertTrue(acks.contains(duplicate));
+
+    tlj.execute(stray);
+    assertEquals(0, out.size());
+    assertTrue(acks.contains(stray));
+
+    tlj.execute(click);
+    assertEquals(1, out.size());
+    assertEquals("[[a], [id=a, v=impression], [impression=a, v=click]]", out.get(0).getTuple().toString());
+    assertTrue(acks.containsAll(ImmutableList.of(impression, click)));
+    assertEquals(0, failures.size());
+  }
+
+  @Test
+  public void testRightFirst() {
+    TimeLimitedJoin tlj = new TimeLimitedJoin(1000, 100, "left", new Fields("k"), "right", new Fields("k"));
+    Fake.clock().set(5000);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    tlj.prepare(null, null, Fake.collector(out, Sets.<Tuple>newHashSet(), Sets.<Tuple>newHashSet()));
+
+    // the left tuple still comes first in the output
+    tlj.execute(Fake.tupleOn("right", "default", "k", 1, "v", "r"));
+    tlj.execute(Fake.tupleOn("left", "default", "k", 1, "v", "l"));
+    assertEquals("[[1], [k=1, v=l], [k=1, v=r]]", out.get(0).getTuple().toString());
+  }
+
+  @Test
+  public void testKeyHash() {
+    int[] both = {0, 1};
+    Tuple ab = Fake.tuple("x", "a", "y", "b");
+    Tuple ba = Fake.tuple("x", "b", "y", "a");
+    Tuple aa = Fake.tuple("x", "a", "y", "a");
+    Tuple bb = Fake.tuple("x", "b", "y", "b");
+
+    // the order of the fields matters and equal fields don't cancel
+    assertTrue(new TimeLimitedJoin.Key(ab, both).hashCode() != new TimeLimitedJoin.Key(ba, both).hashCode());
+    assertTrue(new TimeLimitedJoin.Key(aa, both).hashCode() != new TimeLimitedJoin.Key(bb, both).hashCode());
+    assertTrue(new TimeLimitedJoin.Key(aa, both).hashCode() != 0);
+
+    // keys compare by value wherever the fields are
+    Tuple reversed = Fake.tuple("y", "b", "x", "a");
+    assertEquals(new TimeLimitedJoin.Key(ab, both), new TimeLimitedJoin.Key(reversed, new int[]{1, 0}));
+    assertEquals(new TimeLimitedJoin.Key(ab, both).hashCode(), new TimeLimitedJoin.Key(reversed, new int[]{1, 0}).hashCode());
+    assertEquals("[b, a]", new TimeLimitedJoin.Key(ba, both).values().toString());
+  }
+
+  @Test
+  public void testReorderedFields() {
+    TimeLimitedJoin tlj = new TimeLimitedJoin(1000, 100, new Fields("key1", "key2"));
+    Fake.clock().set(5000);
+
+    List<Fake.AnchoredTuple> out = new ArrayList<Fake.AnchoredTuple>();
+    tlj.prepare(null, null, Fake.collector(out, Sets.<Tuple>newHashSet(), Sets.<Tuple>newHashSet()));
+
+    // swapped values don't join but the same values from a stream with another layout do
+    tlj.execute(Fake.tuple("key1", "a", "key2", "b"));
+    tlj.execute(Fake.tuple("key1", "b", "key2", "a"));
+    assertEquals(0, out.size());
+    tlj.execute(Fake.tupleOn("spout", "other", "key2", "b", "key1", "a", "v", 1));
+    assertEquals(1, out.size());
+    assertEquals("[a, b]", out.get(0).getTuple().get(0).toString());
+  }
 }
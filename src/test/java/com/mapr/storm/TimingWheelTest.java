@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mapr.storm;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+  @Test
+  public void testExpiry() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10, 100);
+    Recorder out = new Recorder();
+
+    wheel.advance(1000, out);
+    wheel.add("a", 1050);
+    wheel.add("b", 1055);
+    TimingWheel<String>.Timeout c = wheel.add("c", 1080);
+    wheel.add("d", 1100);
+    assertEquals(4, wheel.size());
+
+    // nothing expires before the end of the tick that holds the deadline
+    wheel.advance(1059, out);
+    assertEquals(0, out.expired.size());
+    wheel.advance(1060, out);
+    assertEquals("[a, b]", out.expired.toString());
+
+    assertTrue(c.cancel());
+    assertFalse(c.cancel());
+    assertEquals(1, wheel.size());
+
+    // a long gap expires everything that is left
+    wheel.advance(5000, out);
+    assertEquals("[a, b, d]", out.expired.toString());
+    assertEquals(0, wheel.size());
+
+    // slots are reused on later turns of the wheel
+    wheel.add("e", 5100);
+    wheel.add("f", 4000);
+    wheel.advance(5010, out);
+    assertEquals("[a, b, d, f]", out.expired.toString());
+    wheel.advance(5110, out);
+    assertEquals("[a, b, d, f, e]", out.expired.toString());
+  }
+
+  @Test
+  public void testRemoveEarliest() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10, 100);
+    wheel.advance(95, new Recorder());
+    wheel.add("late", 190);
+    wheel.add("early", 100);
+    wheel.add("middle", 150);
+    assertEquals("early", wheel.removeEarliest());
+    assertEquals("middle", wheel.removeEarliest());
+    assertEquals("late", wheel.removeEarliest());
+    assertNull(wheel.removeEarliest());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooFar() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10, 100);
+    wheel.advance(0, new Recorder());
+    wheel.add("x", 1000);
+  }
+
+  private static class Recorder implements TimingWheel.Listener<String> {
+    private final List<String> expired = Lists.newArrayList();
+
+    @Override
+    public void expired(String item) {
+      expired.add(item);
+    }
+  }
+}